@@ -24,16 +24,17 @@ import static org.openhab.binding.myxiaomi.internal.MyXiaoMiBindingConstants.*;
  */
 @NonNullByDefault
 public enum Devices {
-    POWERPLUG("chuangmi.plug.m1", "Mi Power-plug", THING_TYPE_MIIO),
-    POWERPLUG1("chuangmi.plug.v1", "Mi Power-plug v1", THING_TYPE_MIIO),
-    POWERPLUG2("chuangmi.plug.v2", "Mi Power-plug v2", THING_TYPE_MIIO),
-    POWERPLUG3("chuangmi.plug.v3", "Mi Power-plug v3", THING_TYPE_MIIO),
-    POWERPLUGM3("chuangmi.plug.m3", "Mi Power-plug", THING_TYPE_MIIO),
-    POWERPLUG_HMI205("chuangmi.plug.hmi205", "Mi Smart Plug", THING_TYPE_MIIO),
-    UNKNOWN("unknown", "Unknown Mi IO Device", THING_TYPE_UNSUPPORTED);
+    POWERPLUG("chuangmi.plug.m1", "Mi Power-plug", THING_TYPE_MIIO, 10),
+    POWERPLUG1("chuangmi.plug.v1", "Mi Power-plug v1", THING_TYPE_MIIO, 10),
+    POWERPLUG2("chuangmi.plug.v2", "Mi Power-plug v2", THING_TYPE_MIIO, 10),
+    POWERPLUG3("chuangmi.plug.v3", "Mi Power-plug v3", THING_TYPE_MIIO, 10),
+    POWERPLUGM3("chuangmi.plug.m3", "Mi Power-plug", THING_TYPE_MIIO, 10),
+    POWERPLUG_HMI205("chuangmi.plug.hmi205", "Mi Smart Plug", THING_TYPE_MIIO, 10),
+    UNKNOWN("unknown", "Unknown Mi IO Device", THING_TYPE_UNSUPPORTED, 1);
     private final String model;
     private final String description;
     private final ThingTypeUID thingType;
+    private final int maxProperties;
 
     @Override
     public String toString() {
@@ -61,10 +62,18 @@ public enum Devices {
         return thingType;
     }
 
+    /**
+     * @return the number of properties the device answers in a single get_prop request
+     */
+    public int getMaxProperties() {
+        return maxProperties;
+    }
+
 
-    Devices(String model, String description, ThingTypeUID thingTypeMi) {
+    Devices(String model, String description, ThingTypeUID thingTypeMi, int maxProperties) {
         this.model = model;
         this.description = description;
         this.thingType = thingTypeMi;
+        this.maxProperties = maxProperties;
     }
 }
@@ -12,30 +12,54 @@
  */
 package org.openhab.binding.myxiaomi.entity;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * The {@link MiIoCommand} is responsible for creating Xiaomi messages.
  *
  * @author zaoweiceng
  */
 public enum MiIoCommand {
-    MIIO_INFO("miIO.info"),
-    MIIO_WIFI("miIO.wifi_assoc_state"),
-    MIIO_ROUTERCONFIG("miIO.miIO.config_router"),
-    GET_PROPERTY("get_prop"),
-    GET_VALUE("get_value"),
-    SET_MODE_BASIC("set_mode"),
-    SET_POWER("set_power"),
-    SET_BRIGHT("set_bright"),
-    UNKNOWN("");
+    MIIO_INFO("miIO.info", true),
+    MIIO_WIFI("miIO.wifi_assoc_state", true),
+    MIIO_ROUTERCONFIG("miIO.miIO.config_router", false),
+    GET_PROPERTY("get_prop", true),
+    GET_VALUE("get_value", true),
+    SET_MODE_BASIC("set_mode", false),
+    SET_POWER("set_power", false),
+    SET_BRIGHT("set_bright", false),
+    UNKNOWN("", false);
 
     public String getCommand() {
         return command;
     }
 
+    /**
+     * @return true if the command only reads device state, so identical queued requests may share one reply
+     */
+    public boolean isRead() {
+        return read;
+    }
+
+    /**
+     * Writes the pre-encoded part of the request envelope that follows the id: the method and, for a command
+     * without params, the empty params and the closing brace.
+     */
+    public void writeRequestTemplate(ByteBuffer out, boolean noParams) {
+        out.put(noParams ? requestWithoutParams : requestMethod);
+    }
+
     private final String command;
+    private final boolean read;
+    private final byte[] requestMethod;
+    private final byte[] requestWithoutParams;
 
-    MiIoCommand(String s) {
+    MiIoCommand(String s, boolean read) {
         this.command = s;
+        this.read = read;
+        this.requestMethod = (",\"method\":\"" + s + "\",\"params\":").getBytes(StandardCharsets.UTF_8);
+        this.requestWithoutParams = (",\"method\":\"" + s + "\",\"params\":[]}").getBytes(StandardCharsets.UTF_8);
     }
 
     public static MiIoCommand getCommand(String s){
@@ -12,9 +12,15 @@
  */
 package org.openhab.binding.myxiaomi.entity.json;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.eclipse.jdt.annotation.Nullable;
 import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+import org.openhab.binding.myxiaomi.internal.MiIoCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 /**
  * The {@link MiIoSendCommand} is responsible for creating Xiaomi messages.
  *
@@ -23,17 +29,24 @@ import org.openhab.binding.myxiaomi.entity.MiIoCommand;
 public class MiIoSendCommand {
     private final int id;
     private final MiIoCommand command;
-    private final String commandString;
+    private final String method;
+    private final String params;
+    private final long queuedAt = System.nanoTime();
     private @Nullable JsonObject response;
+    private @Nullable List<MiIoSendCommand> coalesced;
 
     public void setResponse(JsonObject response){
         this.response = response;
     }
 
-    public MiIoSendCommand(int id, MiIoCommand command, String commandString) {
+    /**
+     * @param params normalized params, see {@link MiIoCodec#normalize(String)}
+     */
+    public MiIoSendCommand(int id, MiIoCommand command, String method, String params) {
         this.id = id;
         this.command = command;
-        this.commandString = commandString;
+        this.method = method;
+        this.params = params;
     }
 
     public int getId() {
@@ -44,8 +57,40 @@ public class MiIoSendCommand {
         return command;
     }
 
+    public String getMethod() {
+        return method;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    /**
+     * @return the request envelope, the transport writes it straight into the packet buffer instead
+     */
     public String getCommandString() {
-        return commandString;
+        return MiIoCodec.toRequestString(id, method, getParams());
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * Attaches an identical read request that is answered by the reply to this one instead of going on the wire.
+     */
+    public void coalesce(MiIoSendCommand duplicate) {
+        List<MiIoSendCommand> list = coalesced;
+        if (list == null) {
+            list = new ArrayList<>();
+            coalesced = list;
+        }
+        list.add(duplicate);
+    }
+
+    public List<MiIoSendCommand> getCoalesced() {
+        List<MiIoSendCommand> list = coalesced;
+        return list != null ? list : Collections.emptyList();
     }
 
     public JsonObject getResponse() {
@@ -59,9 +104,12 @@ public class MiIoSendCommand {
         return true;
     }
 
-    public JsonObject getResult(){
+    /**
+     * @return the result of the command, a JSON array for get_prop and a JSON object for most other commands
+     */
+    public JsonElement getResult(){
         if (response != null && response.has("result")){
-            return (JsonObject)response.get("result");
+            return response.get("result");
         }
         return new JsonObject();
     }
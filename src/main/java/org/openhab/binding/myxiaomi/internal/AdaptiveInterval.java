@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link AdaptiveInterval} is the poll interval of one device between a minimum and a maximum. It grows by half
+ * after every poll cycle without a state change and snaps back to the minimum as soon as a change or a command is
+ * seen. With the maximum not above the minimum it stays fixed.
+ *
+ * @author zaoweiceng
+ */
+@NonNullByDefault
+public class AdaptiveInterval {
+    private final long min;
+    private final long max;
+    private long current;
+
+    /**
+     * @param min interval in seconds used while the device changes
+     * @param max interval in seconds the interval grows to while the device is stable
+     */
+    public AdaptiveInterval(long min, long max) {
+        this.min = min;
+        this.max = Math.max(min, max);
+        this.current = min;
+    }
+
+    public boolean isAdaptive() {
+        return max > min;
+    }
+
+    /**
+     * Records a poll cycle without a state change.
+     *
+     * @return true if the interval changed
+     */
+    public synchronized boolean stable() {
+        long next = Math.min(max, current + Math.max(1, current / 2));
+        if (next == current) {
+            return false;
+        }
+        current = next;
+        return true;
+    }
+
+    /**
+     * Records a state change or a command.
+     *
+     * @return true if the interval changed
+     */
+    public synchronized boolean changed() {
+        if (current == min) {
+            return false;
+        }
+        current = min;
+        return true;
+    }
+
+    /**
+     * @return the effective interval in seconds
+     */
+    public synchronized long getCurrent() {
+        return current;
+    }
+}
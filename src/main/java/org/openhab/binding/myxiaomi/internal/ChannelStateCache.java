@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.core.library.types.DecimalType;
+import org.eclipse.smarthome.core.types.State;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The {@link ChannelStateCache} remembers the last state emitted on every channel of a thing and decides whether a
+ * new state is worth emitting. Numeric states that moved less than the deadband of their channel are suppressed,
+ * unless the channel has been silent for longer than its maximum silence.
+ *
+ * @author zaoweiceng
+ */
+@NonNullByDefault
+public class ChannelStateCache {
+    public enum Decision {
+        /** the state changed and is emitted */
+        CHANGED,
+        /** the state did not change but is emitted again, the channel was silent for too long or was refreshed */
+        REFRESH,
+        /** the state is not emitted */
+        SUPPRESS
+    }
+
+    private final Function<String, Deadband> deadbands;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * @param deadbands looks up the deadband of a channel, called once per channel
+     */
+    public ChannelStateCache(Function<String, Deadband> deadbands) {
+        this.deadbands = deadbands;
+    }
+
+    /**
+     * Decides about a new state and records it as emitted unless it is suppressed.
+     *
+     * @param now time in nanoseconds
+     */
+    public Decision update(String channel, State state, long now) {
+        Entry entry = entry(channel);
+        synchronized (entry) {
+            State last = entry.state;
+            Decision decision;
+            if (last == null || entry.deadband.exceeds(last, state)) {
+                decision = Decision.CHANGED;
+            } else if (entry.forced
+                    || (entry.deadband.maxSilence > 0 && now - entry.emittedAt >= entry.deadband.maxSilence)) {
+                decision = Decision.REFRESH;
+            } else {
+                suppressed.incrementAndGet();
+                return Decision.SUPPRESS;
+            }
+            entry.state = state;
+            entry.emittedAt = now;
+            entry.forced = false;
+            return decision;
+        }
+    }
+
+    /**
+     * Makes sure the next state of the channel is emitted even if it did not change.
+     */
+    public void force(String channel) {
+        Entry entry = entry(channel);
+        synchronized (entry) {
+            entry.forced = true;
+        }
+    }
+
+    /**
+     * Emits the last state again for a channel still waiting for a forced update.
+     *
+     * @return the state to emit, or null if the channel is not forced or has no state yet
+     */
+    public @Nullable State takeForced(String channel, long now) {
+        Entry entry = entries.get(channel);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            State last = entry.state;
+            if (!entry.forced || last == null) {
+                return null;
+            }
+            entry.forced = false;
+            entry.emittedAt = now;
+            return last;
+        }
+    }
+
+    private Entry entry(String channel) {
+        return entries.computeIfAbsent(channel, c -> new Entry(deadbands.apply(c)));
+    }
+
+    /**
+     * @return the last state emitted on the channel
+     */
+    public @Nullable State get(String channel) {
+        Entry entry = entries.get(channel);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return entry.state;
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return number of states that were not emitted
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    /**
+     * The deadband of a channel. A numeric change within the absolute or within the percentage band is
+     * suppressed, any other change is emitted.
+     */
+    public static class Deadband {
+        public static final Deadband NONE = new Deadband(BigDecimal.ZERO, BigDecimal.ZERO, 0);
+
+        private final BigDecimal absolute;
+        private final BigDecimal percent;
+        private final long maxSilence;
+
+        /**
+         * @param absolute largest suppressed change, 0 for none
+         * @param percent largest suppressed change in percent of the last emitted value, 0 for none
+         * @param maxSilence seconds after which an unchanged state is emitted again, 0 for never
+         */
+        public Deadband(BigDecimal absolute, BigDecimal percent, long maxSilence) {
+            this.absolute = absolute.abs();
+            this.percent = percent.abs();
+            this.maxSilence = TimeUnit.SECONDS.toNanos(maxSilence);
+        }
+
+        boolean exceeds(State last, State state) {
+            if (last.equals(state)) {
+                return false;
+            }
+            if (!(last instanceof DecimalType) || !(state instanceof DecimalType)) {
+                return true;
+            }
+            BigDecimal previous = ((DecimalType) last).toBigDecimal();
+            BigDecimal delta = ((DecimalType) state).toBigDecimal().subtract(previous).abs();
+            if (absolute.signum() > 0 && delta.compareTo(absolute) <= 0) {
+                return false;
+            }
+            return percent.signum() <= 0 || previous.signum() == 0
+                    || delta.scaleByPowerOfTen(2).compareTo(previous.abs().multiply(percent)) > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "absolute=" + absolute + ", percent=" + percent + ", maxSilence="
+                    + TimeUnit.NANOSECONDS.toSeconds(maxSilence) + "s";
+        }
+    }
+
+    private static class Entry {
+        final Deadband deadband;
+        @Nullable
+        State state;
+        long emittedAt;
+        boolean forced;
+
+        Entry(Deadband deadband) {
+            this.deadband = deadband;
+        }
+    }
+}
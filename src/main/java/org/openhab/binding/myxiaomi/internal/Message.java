@@ -13,8 +13,11 @@
 package org.openhab.binding.myxiaomi.internal;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
 
 import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.LocalDateTime;
@@ -23,35 +26,45 @@ import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 /**
  * The {@link Message} is responsible for creating Xiaomi messages.
+ * A received message is a flyweight view over a {@link ByteBuffer}: header fields are read by offset and the
+ * payload is only copied out when it is actually needed. A view over a reused buffer is only valid until the
+ * buffer is overwritten, use {@link #copy()} to keep it longer.
  *
  * @author zaoweiceng
  */
 @NonNullByDefault
 public class Message {
     private static final byte[] MAGIC = Utils.hexStringToByteArray("2131");
+    private static final int HEADER_LENGTH = 16;
+    private static final int MIN_LENGTH = 32;
 
-    private byte[] data;
-    private byte[] header;
-    private byte[] magic;
-    private int length = 0;
-    private byte[] unknowns = new byte[4];
-
-    private byte[] deviceId = new byte[4];
-    private byte[] tsByte = new byte[4];
-    private byte[] checksum;
-    private byte[] raw;
+    private ByteBuffer buffer;
+    private int offset;
+    private int size;
+    private byte @Nullable [] data;
 
     public Message(byte[] raw){
-        this.raw = java.util.Arrays.copyOf(raw, (raw.length < 32) ? 32 : raw.length);
-        this.header = java.util.Arrays.copyOf(this.raw, 16);
-        this.magic = java.util.Arrays.copyOf(this.raw, 2);
-        byte[] msgL = java.util.Arrays.copyOfRange(this.raw, 2, 4);
-        this.length = ByteBuffer.wrap(msgL).getShort();
-        this.unknowns = java.util.Arrays.copyOfRange(this.raw, 4, 8);
-        this.deviceId = java.util.Arrays.copyOfRange(this.raw, 8, 12);
-        this.tsByte = java.util.Arrays.copyOfRange(this.raw, 12, 16);
-        this.checksum = java.util.Arrays.copyOfRange(this.raw, 16, 32);
-        this.data = java.util.Arrays.copyOfRange(this.raw, 32, length);
+        setRaw(raw);
+    }
+
+    /**
+     * Creates a view over the remaining bytes of the buffer without copying them.
+     */
+    public Message(ByteBuffer buffer) {
+        if (buffer.remaining() < MIN_LENGTH) {
+            setRaw(copyRemaining(buffer));
+        } else {
+            this.buffer = buffer;
+            this.offset = buffer.position();
+            this.size = buffer.remaining();
+        }
+    }
+
+    /**
+     * @return a message backed by its own copy of the bytes, independent of the buffer this view was created on
+     */
+    public Message copy() {
+        return new Message(getRaw());
     }
 
     public static Message createMsg(byte[] data, byte[] token, byte[] deviceId, int timeStamp) throws NoSuchAlgorithmException {
@@ -59,44 +72,92 @@ public class Message {
     }
 
     public static byte[] creatMsgData(byte[] data, byte[] token, byte[] deviceId, int timeStamp) throws NoSuchAlgorithmException {
-        short msgLength = (short) (data.length + 32);
-        ByteBuffer header = ByteBuffer.allocate(16);
-        header.put(MAGIC);
-        header.putShort(msgLength);
-        header.put(new byte[4]);
-        header.put(deviceId);
-        header.putInt(timeStamp);
-        ByteBuffer msg = ByteBuffer.allocate(msgLength);
-        msg.put(header.array());
-        msg.put(getChecksum(header.array(), token, data));
-        msg.put(data);
+        ByteBuffer msg = ByteBuffer.allocate(data.length + MIN_LENGTH);
+        writeMsgData(msg, data, token, deviceId, timeStamp, MessageDigest.getInstance("MD5"));
         return msg.array();
     }
 
+    /**
+     * Writes a complete message into the buffer at its current position, without any intermediate copies.
+     *
+     * @param msg the buffer to write to, its position is advanced past the message
+     * @param md5 a MD5 digest owned by the caller, it is reset before use
+     */
+    public static void writeMsgData(ByteBuffer msg, byte[] data, byte[] token, byte[] deviceId, int timeStamp,
+            MessageDigest md5) {
+        ByteBuffer frame = msg.duplicate();
+        frame.position(msg.position() + MIN_LENGTH);
+        frame.put(data);
+        frame.flip();
+        frame.position(msg.position());
+        writeMsgHeader(frame, token, deviceId, timeStamp, md5);
+        msg.position(frame.limit());
+    }
+
+    /**
+     * Fills in header and checksum of a message whose payload is already in place after the first 32 bytes.
+     *
+     * @param msg the message, from its position to its limit; position and limit are left unchanged
+     * @param md5 a MD5 digest owned by the caller, it is reset before use
+     */
+    public static void writeMsgHeader(ByteBuffer msg, byte[] token, byte[] deviceId, int timeStamp,
+            MessageDigest md5) {
+        int start = msg.position();
+        int length = msg.remaining();
+        msg.put(start, MAGIC[0]);
+        msg.put(start + 1, MAGIC[1]);
+        msg.putShort(start + 2, (short) length);
+        msg.putInt(start + 4, 0);
+        for (int i = 0; i < 4; i++) {
+            msg.put(start + 8 + i, i < deviceId.length ? deviceId[i] : 0);
+        }
+        msg.putInt(start + 12, timeStamp);
+        ByteBuffer part = msg.duplicate();
+        md5.reset();
+        part.limit(start + HEADER_LENGTH);
+        md5.update(part);
+        md5.update(token);
+        part.limit(start + length);
+        part.position(start + MIN_LENGTH);
+        md5.update(part);
+        byte[] checksum = md5.digest();
+        for (int i = 0; i < checksum.length; i++) {
+            msg.put(start + HEADER_LENGTH + i, checksum[i]);
+        }
+    }
+
     public static byte[] getChecksum(byte[] header, byte[] token, byte[] data) throws NoSuchAlgorithmException {
-        ByteBuffer msg = ByteBuffer.allocate(header.length + token.length + data.length);
-        msg.put(header);
-        msg.put(token);
-        msg.put(data);
-        return MiIoCrypto.md5(msg.array());
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(header);
+        md5.update(token);
+        md5.update(data);
+        return md5.digest();
     }
     public String toSting() {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
         String formattedDate = getTimestamp().format(formatter);
-        String s = "Message:\r\nHeader  : " + Utils.getSpacedHex(header) + "\r\nchecksum: "
-                + Utils.getSpacedHex(checksum);
+        String s = "Message:\r\nHeader  : " + Utils.getSpacedHex(getHeader()) + "\r\nchecksum: "
+                + Utils.getSpacedHex(getChecksum());
         if (getLength() > 32) {
-            s += "\r\ncontent : " + Utils.getSpacedHex(data);
+            s += "\r\ncontent : " + Utils.getSpacedHex(getData());
         } else {
             s += "\r\ncontent : N/A";
         }
-        s += "\r\nHeader Details: Magic:" + Utils.getSpacedHex(magic) + "\r\nLength:   " + Integer.toString(length);
-        s += "\r\nSerial:   " + Utils.getSpacedHex(deviceId) + "\r\nTS:" + formattedDate;
+        s += "\r\nHeader Details: Magic:" + Utils.getSpacedHex(slice(0, 2)) + "\r\nLength:   " + Integer.toString(getLength());
+        s += "\r\nSerial:   " + Utils.getSpacedHex(getDeviceId()) + "\r\nTS:" + formattedDate;
         return s;
     }
 
+    /**
+     * @return the encrypted payload, copied out of the underlying buffer on first use
+     */
     public byte[] getData() {
-        return data;
+        byte[] payload = data;
+        if (payload == null) {
+            payload = slice(MIN_LENGTH, Math.max(MIN_LENGTH, Math.min(getLength(), size)));
+            data = payload;
+        }
+        return payload;
     }
 
     public void setData(byte[] data) {
@@ -104,35 +165,42 @@ public class Message {
     }
 
     public byte[] getHeader() {
-        return header;
+        return slice(0, HEADER_LENGTH);
     }
 
     public void setHeader(byte[] header) {
-        this.magic = header;
+        put(0, header, HEADER_LENGTH);
     }
 
     public int getLength() {
-        return length;
+        return buffer.getShort(offset + 2) & 0xFFFF;
     }
 
     public void setLength(int length) {
-        this.length = length;
+        buffer.putShort(offset + 2, (short) length);
     }
 
     public byte[] getUnknowns() {
-        return unknowns;
+        return slice(4, 8);
     }
 
     public void setUnknowns(byte[] unknowns) {
-        this.unknowns = unknowns;
+        put(4, unknowns, 4);
     }
 
     public byte[] getDeviceId() {
-        return deviceId;
+        return slice(8, 12);
+    }
+
+    /**
+     * @return the device ID read straight from the header, without allocating
+     */
+    public int getDeviceIdAsInt() {
+        return buffer.getInt(offset + 8);
     }
 
     public void setDeviceId(byte[] serialByte) {
-        this.deviceId = serialByte;
+        put(8, serialByte, 4);
     }
 
     public LocalDateTime getTimestamp() {
@@ -141,27 +209,89 @@ public class Message {
 
 
     public int getTimestampAsInt() {
-        return ByteBuffer.wrap(tsByte).getInt();
+        return buffer.getInt(offset + 12);
     }
 
 
     public byte[] getRaw() {
-        return raw;
+        return slice(0, size);
     }
 
     public void setRaw(byte[] raw) {
-        this.raw = java.util.Arrays.copyOf(raw, (raw.length < 32) ? 32 : raw.length);
+        this.buffer = ByteBuffer.wrap(raw.length < MIN_LENGTH ? Arrays.copyOf(raw, MIN_LENGTH) : raw);
+        this.offset = 0;
+        this.size = buffer.capacity();
+        this.data = null;
     }
 
     public byte[] getChecksum() {
-        return checksum;
+        return slice(HEADER_LENGTH, MIN_LENGTH);
     }
 
     public void setChecksum(byte[] checksum) {
-        this.checksum = checksum;
+        put(HEADER_LENGTH, checksum, 16);
+    }
+
+    private byte[] slice(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + from + i);
+        }
+        return bytes;
+    }
+
+    private void put(int at, byte[] bytes, int length) {
+        for (int i = 0; i < Math.min(length, bytes.length); i++) {
+            buffer.put(offset + at + i, bytes[i]);
+        }
     }
 
-    public boolean isChecksumValid() {
-        return Arrays.equals(getChecksum(), checksum);
+    /**
+     * @return a view of the encrypted payload in the underlying buffer, nothing is copied
+     */
+    public ByteBuffer getDataBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + Math.max(MIN_LENGTH, Math.min(getLength(), size)));
+        view.position(offset + MIN_LENGTH);
+        return view;
+    }
+
+    private static byte[] copyRemaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Verifies the MD5 checksum over header, token and payload straight from the underlying buffer.
+     *
+     * @param md5 a MD5 digest owned by the caller, it is reset before use
+     * @param scratch a caller owned array of at least 16 bytes receiving the computed digest
+     */
+    public boolean isChecksumValid(byte[] token, MessageDigest md5, byte[] scratch) {
+        int end = offset + Math.min(getLength(), size);
+        if (end < offset + MIN_LENGTH) {
+            return false;
+        }
+        ByteBuffer part = buffer.duplicate();
+        md5.reset();
+        part.limit(offset + HEADER_LENGTH);
+        part.position(offset);
+        md5.update(part);
+        md5.update(token);
+        part.limit(end);
+        part.position(offset + MIN_LENGTH);
+        md5.update(part);
+        try {
+            md5.digest(scratch, 0, 16);
+        } catch (DigestException e) {
+            return false;
+        }
+        for (int i = 0; i < 16; i++) {
+            if (scratch[i] != buffer.get(offset + HEADER_LENGTH + i)) {
+                return false;
+            }
+        }
+        return true;
     }
 }
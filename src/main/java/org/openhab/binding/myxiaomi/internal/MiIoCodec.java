@@ -0,0 +1,376 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@link MiIoCodec} streams miIO request envelopes into byte buffers and reads replies straight from the
+ * decrypted bytes, without building intermediate strings or a tree of the whole message.
+ *
+ * @author zaoweiceng
+ */
+@NonNullByDefault
+public class MiIoCodec {
+    private static final JsonParser PARSER = new JsonParser();
+    private static final byte[] REQUEST_START = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+    public static final String NO_PARAMS = "[]";
+
+    private MiIoCodec() {
+    }
+
+    /**
+     * Validates command params and returns them in compact form. Like {@link JsonParser#parse(String)} the params
+     * are read leniently, so a bare word becomes a JSON string.
+     *
+     * @throws JsonSyntaxException if the params are not JSON
+     */
+    public static String normalize(String params) {
+        if (params.trim().isEmpty()) {
+            return "null";
+        }
+        try {
+            JsonReader reader = new JsonReader(new StringReader(params));
+            reader.setLenient(true);
+            StringWriter out = new StringWriter(params.length());
+            JsonWriter writer = new JsonWriter(out);
+            writer.setLenient(true);
+            copy(reader, writer);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Unexpected content after params " + params);
+            }
+            writer.flush();
+            return out.toString();
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * @return the number of elements of normalized params that are a non empty flat array of primitives, -1 for
+     *         anything else
+     */
+    public static int countFlatArray(String params) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(params));
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                return -1;
+            }
+            reader.beginArray();
+            int count = 0;
+            while (reader.hasNext()) {
+                JsonToken token = reader.peek();
+                if (token == JsonToken.BEGIN_ARRAY || token == JsonToken.BEGIN_OBJECT) {
+                    return -1;
+                }
+                reader.skipValue();
+                count++;
+            }
+            return count;
+        } catch (IOException | IllegalStateException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the request envelope as UTF-8 into the buffer at its current position. Known commands are spliced
+     * together from the pre-encoded template of the command, the id and the params, unknown ones are written with
+     * a {@link JsonWriter}.
+     *
+     * @param params normalized params, see {@link #normalize(String)}
+     */
+    public static void writeRequest(ByteBuffer out, int id, MiIoCommand command, String method, String params)
+            throws IOException {
+        if (command == MiIoCommand.UNKNOWN) {
+            writeRequest(out, id, method, params);
+            return;
+        }
+        try {
+            out.put(REQUEST_START);
+            putInt(out, id);
+            boolean noParams = NO_PARAMS.equals(params);
+            command.writeRequestTemplate(out, noParams);
+            if (!noParams) {
+                putString(out, params);
+                out.put((byte) '}');
+            }
+        } catch (BufferOverflowException e) {
+            throw new IOException("Request does not fit into " + out.capacity() + " bytes");
+        }
+    }
+
+    private static void putInt(ByteBuffer out, int value) {
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static void putString(ByteBuffer out, String text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                ByteBufferWriter writer = new ByteBufferWriter(out);
+                writer.write(text, i, length - i);
+                writer.close();
+                return;
+            }
+            out.put((byte) c);
+        }
+    }
+
+    /**
+     * Writes the request envelope as UTF-8 into the buffer at its current position.
+     *
+     * @param params normalized params, see {@link #normalize(String)}
+     */
+    public static void writeRequest(ByteBuffer out, int id, String method, String params) throws IOException {
+        ByteBufferWriter target = new ByteBufferWriter(out);
+        JsonWriter writer = new JsonWriter(target);
+        writeRequest(writer, id, method, params);
+        writer.flush();
+        target.close();
+    }
+
+    public static String toRequestString(int id, String method, String params) {
+        StringWriter out = new StringWriter();
+        try {
+            writeRequest(new JsonWriter(out), id, method, params);
+        } catch (IOException e) {
+            // a StringWriter does not throw
+        }
+        return out.toString();
+    }
+
+    private static void writeRequest(JsonWriter writer, int id, String method, String params) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(id);
+        writer.name("method").value(method);
+        writer.name("params").jsonValue(params);
+        writer.endObject();
+    }
+
+    /**
+     * Reads a reply from the decrypted bytes between the position and the limit of the buffer. Only the id, result
+     * and error members are kept, and the ",," some devices put into their replies is repaired while reading.
+     */
+    public static JsonObject readResponse(ByteBuffer in) throws IOException {
+        JsonReader reader = new JsonReader(new RepairingReader(in));
+        reader.setLenient(true);
+        JsonObject response = new JsonObject();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("id".equals(name) || "result".equals(name) || "error".equals(name)) {
+                    response.add(name, PARSER.parse(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | JsonSyntaxException e) {
+            throw new IOException("Malformed reply: " + e.getMessage(), e);
+        }
+        return response;
+    }
+
+    private static void copy(JsonReader reader, JsonWriter writer) throws IOException {
+        int depth = 0;
+        do {
+            switch (reader.peek()) {
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    writer.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    reader.endArray();
+                    writer.endArray();
+                    depth--;
+                    break;
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    writer.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    writer.endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    writer.name(reader.nextName());
+                    break;
+                case STRING:
+                    writer.value(reader.nextString());
+                    break;
+                case NUMBER:
+                    // keeps the literal, so large and decimal numbers are sent exactly as given
+                    writer.jsonValue(reader.nextString());
+                    break;
+                case BOOLEAN:
+                    writer.value(reader.nextBoolean());
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    writer.nullValue();
+                    break;
+                default:
+                    throw new JsonSyntaxException("Unexpected end of params");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Encodes characters as UTF-8 straight into a byte buffer.
+     */
+    private static class ByteBufferWriter extends Writer {
+        private final ByteBuffer out;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        ByteBufferWriter(ByteBuffer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            check(encoder.encode(CharBuffer.wrap(cbuf, off, len), out, false));
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            check(encoder.encode(CharBuffer.wrap(str, off, off + len), out, false));
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            check(encoder.encode(CharBuffer.allocate(0), out, true));
+            check(encoder.flush(out));
+        }
+
+        private void check(CoderResult result) throws IOException {
+            if (result.isOverflow()) {
+                throw new IOException("Request does not fit into " + out.capacity() + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Decodes UTF-8 from a byte buffer and drops the second comma of a ",," outside of strings.
+     */
+    private static class RepairingReader extends Reader {
+        private final ByteBuffer in;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private boolean inString;
+        private boolean escaped;
+        private boolean afterComma;
+        private boolean flushed;
+
+        RepairingReader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                CharBuffer chars = CharBuffer.wrap(cbuf, off, len);
+                if (in.hasRemaining()) {
+                    decoder.decode(in, chars, true);
+                } else if (!flushed) {
+                    decoder.flush(chars);
+                    flushed = true;
+                }
+                int decoded = chars.position() - off;
+                if (decoded == 0) {
+                    if (!in.hasRemaining() && flushed) {
+                        return -1;
+                    }
+                    continue;
+                }
+                int kept = repair(cbuf, off, decoded);
+                if (kept > 0) {
+                    return kept;
+                }
+            }
+        }
+
+        private int repair(char[] cbuf, int off, int len) {
+            int kept = off;
+            for (int i = off; i < off + len; i++) {
+                char c = cbuf[i];
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == ',') {
+                    if (afterComma) {
+                        continue;
+                    }
+                    afterComma = true;
+                } else if (!Character.isWhitespace(c)) {
+                    afterComma = false;
+                    inString = c == '"';
+                }
+                cbuf[kept++] = c;
+            }
+            return kept - off;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
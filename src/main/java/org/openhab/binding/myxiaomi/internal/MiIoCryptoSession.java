@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * The {@link MiIoCryptoSession} holds the crypto state of one device token: the derived AES key and IV are
+ * computed once, and the {@link Cipher} and {@link MessageDigest} instances are created once and reused.
+ * The instances are guarded by the session, so a session may be shared but is meant to be used mostly from a
+ * single thread.
+ *
+ * @author zaoweiceng
+ */
+@NonNullByDefault
+public class MiIoCryptoSession {
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int BLOCK_SIZE = 16;
+
+    private final byte[] token;
+    private final SecretKeySpec keySpec;
+    private final IvParameterSpec iv;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final MessageDigest md5;
+    private final byte[] digest = new byte[16];
+
+    public MiIoCryptoSession(byte[] token) throws GeneralSecurityException {
+        this.token = token.clone();
+        this.keySpec = new SecretKeySpec(MiIoCrypto.md5(token), "AES");
+        this.iv = new IvParameterSpec(MiIoCrypto.iv(token));
+        this.encryptCipher = Cipher.getInstance(TRANSFORMATION);
+        this.encryptCipher.init(Cipher.ENCRYPT_MODE, keySpec, iv);
+        this.decryptCipher = Cipher.getInstance(TRANSFORMATION);
+        this.decryptCipher.init(Cipher.DECRYPT_MODE, keySpec, iv);
+        this.md5 = MessageDigest.getInstance("MD5");
+    }
+
+    /**
+     * @return the length of the cipher text for a plain text of the given length
+     */
+    public static int getEncryptedLength(int plainLength) {
+        return (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    public synchronized byte[] encrypt(byte[] text) throws IllegalBlockSizeException, BadPaddingException {
+        return encryptCipher.doFinal(text);
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code text} into {@code out} at its current position.
+     *
+     * @return the number of bytes written
+     */
+    public synchronized int encrypt(ByteBuffer text, ByteBuffer out)
+            throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        return encryptCipher.doFinal(text, out);
+    }
+
+    public synchronized byte[] decrypt(byte[] cipherText) throws IllegalBlockSizeException, BadPaddingException {
+        return decryptCipher.doFinal(cipherText);
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code cipherText} into {@code out} at its current position.
+     *
+     * @return the number of bytes written
+     */
+    public synchronized int decrypt(ByteBuffer cipherText, ByteBuffer out)
+            throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        return decryptCipher.doFinal(cipherText, out);
+    }
+
+    /**
+     * Checks the checksum of a received message against the token of this session.
+     */
+    public synchronized boolean isChecksumValid(Message msg) {
+        return msg.isChecksumValid(token, md5, digest);
+    }
+
+    /**
+     * Writes the header and checksum of a message whose encrypted payload is already in place after the header.
+     *
+     * @param msg buffer holding the message from its position to its limit
+     */
+    public synchronized void writeHeader(ByteBuffer msg, byte[] deviceId, int timeStamp) {
+        Message.writeMsgHeader(msg, token, deviceId, timeStamp, md5);
+    }
+}
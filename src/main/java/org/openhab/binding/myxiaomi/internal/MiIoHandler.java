@@ -12,15 +12,16 @@
  */
 package org.openhab.binding.myxiaomi.internal;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.smarthome.config.core.Configuration;
-import org.eclipse.smarthome.core.cache.ExpiringCache;
 import org.eclipse.smarthome.core.library.types.DecimalType;
 import org.eclipse.smarthome.core.library.types.StringListType;
 import org.eclipse.smarthome.core.library.types.StringType;
+import org.eclipse.smarthome.core.thing.Channel;
 import org.eclipse.smarthome.core.thing.ChannelUID;
 import org.eclipse.smarthome.core.thing.Thing;
 import org.eclipse.smarthome.core.thing.ThingStatus;
@@ -28,19 +29,36 @@ import org.eclipse.smarthome.core.thing.ThingStatusDetail;
 import org.eclipse.smarthome.core.thing.binding.BaseThingHandler;
 import org.eclipse.smarthome.core.thing.binding.builder.ThingBuilder;
 import org.eclipse.smarthome.core.types.Command;
+import org.eclipse.smarthome.core.types.State;
 import org.openhab.binding.myxiaomi.annotation.MessageListener;
 import org.openhab.binding.myxiaomi.entity.Devices;
 import org.openhab.binding.myxiaomi.entity.MiIoCommand;
 import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+import org.openhab.binding.myxiaomi.internal.ChannelStateCache.Deadband;
+import org.openhab.binding.myxiaomi.internal.PropertyCache.Property;
+import org.openhab.binding.myxiaomi.internal.transport.CircuitBreaker;
+import org.openhab.binding.myxiaomi.internal.transport.CommandPriority;
 import org.openhab.binding.myxiaomi.internal.transport.Communication;
+import org.openhab.binding.myxiaomi.internal.transport.MiIoPollScheduler.Poll;
+import org.openhab.binding.myxiaomi.internal.transport.MiIoSessionRegistry;
+import org.openhab.binding.myxiaomi.internal.transport.MiIoTransport;
+import org.openhab.binding.myxiaomi.internal.transport.QueuePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.openhab.binding.myxiaomi.internal.MyXiaoMiBindingConstants.*;
 /**
@@ -50,8 +68,14 @@ import static org.openhab.binding.myxiaomi.internal.MyXiaoMiBindingConstants.*;
  */
 public abstract class MiIoHandler extends BaseThingHandler implements MessageListener {
     protected static final int MAX_QUEUE = 5;
+    private static final long REFRESH_WINDOW = 200;
+    private static final Map<String, Deadband> DEFAULT_DEADBANDS = new HashMap<>();
+    static {
+        DEFAULT_DEADBANDS.put(CHANNEL_RSSI, new Deadband(BigDecimal.valueOf(3), BigDecimal.ZERO, 0));
+        DEFAULT_DEADBANDS.put(CHANNEL_LIFE, new Deadband(BigDecimal.ZERO, BigDecimal.TEN, 3600));
+    }
 
-    protected  ScheduledFuture<?> pollingJob;
+    protected @Nullable Poll pollingJob;
     protected  MyXiaoMiConfiguration configuration;
     protected Devices miDevices = Devices.UNKNOWN;
     protected boolean isIdentified;
@@ -59,22 +83,36 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
     protected JsonParser parser;
     protected  byte[] token;
     protected  Communication miioCom;
+    protected final MiIoSessionRegistry registry;
+    protected final MiIoTransport transport;
+    private final AtomicBoolean polling = new AtomicBoolean();
+    protected AdaptiveInterval pollInterval = new AdaptiveInterval(0, 0);
+    protected final ChannelStateCache stateCache = new ChannelStateCache(this::getDeadband);
+    private volatile boolean stateChanged;
+    private final Set<ChannelUID> refreshRequests = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final AtomicInteger commandsSent = new AtomicInteger();
     protected int lastId;
-    protected Map<Integer, String> cmds = new ConcurrentHashMap<Integer, String>();
-    protected  ExpiringCache<String> network;
     protected static final long CACHE_EXPIRY = TimeUnit.SECONDS.toMillis(5);
     protected static final long CACHE_EXPIRY_NETWORK = TimeUnit.SECONDS.toMillis(60);
+    protected static final Property<JsonObject> NETWORK = new Property<>("network", MiIoCommand.MIIO_INFO,
+            JsonObject.class, JsonElement::getAsJsonObject, CACHE_EXPIRY_NETWORK, false);
+    protected final PropertyCache propertyCache = new PropertyCache(this::fetchProperty);
     private final Logger logger = LoggerFactory.getLogger(MiIoHandler.class);
 
     /**
      * Creates a new instance of this class for the {@link Thing}.
      *
      * @param thing the thing that should be handled, not null
+     * @param registry the binding wide registry of device sessions
      */
     @NonNullByDefault
-    public MiIoHandler(Thing thing) {
+    public MiIoHandler(Thing thing, MiIoSessionRegistry registry) {
         super(thing);
+        this.registry = registry;
+        this.transport = registry.getTransport();
         parser = new JsonParser();
+        propertyCache.register(NETWORK);
     }
 
     @Override
@@ -88,25 +126,131 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
             return;
         }
         isIdentified = false;
-        scheduler.schedule(this::initialize, 1, TimeUnit.SECONDS);
+        scheduler.schedule(() -> transport.runBlocking(this::initializeData), 1, TimeUnit.SECONDS);
         int pollingPeriod = configuration.refreshInterval;
+        pollInterval = new AdaptiveInterval(pollingPeriod, configuration.maxRefreshInterval);
+        stateCache.clear();
+        propertyCache.clear();
         if (pollingPeriod > 0) {
-            pollingJob = scheduler.scheduleWithFixedDelay(() -> {
-                try {
-                    updateData();
-                } catch (Exception e) {
-                    logger.debug("Unexpected error during refresh.", e);
-                }
-            }, 10, pollingPeriod, TimeUnit.SECONDS);
+            pollingJob = registry.getPollScheduler().register(getThing().getUID().toString(), 10, pollingPeriod,
+                    TimeUnit.SECONDS, () -> transport.runBlocking(this::poll), scheduler);
+            updateProperty(PROPERTY_EFFECTIVE_REFRESH_INTERVAL, String.valueOf(pollingPeriod));
         } else {
             logger.debug("Polling job disabled. for '{}'", getThing().getUID());
-            scheduler.schedule(this::updateData, 10, TimeUnit.SECONDS);
+            scheduler.schedule(() -> transport.runBlocking(this::updateData), 10, TimeUnit.SECONDS);
         }
         updateStatus(ThingStatus.OFFLINE);
     }
 
     protected abstract void updateData();
 
+    private void poll() {
+        update(true);
+    }
+
+    /**
+     * Runs {@link #updateData()} unless an update of the thing is still running.
+     *
+     * @param scheduled true for a poll cycle, which also adapts the poll interval
+     */
+    private void update(boolean scheduled) {
+        if (!polling.compareAndSet(false, true)) {
+            logger.debug("Previous refresh of '{}' still running, skipping", getThing().getUID());
+            return;
+        }
+        try {
+            if (scheduled) {
+                adaptPollInterval();
+            }
+            updateData();
+        } catch (Exception e) {
+            logger.debug("Unexpected error during refresh.", e);
+        } finally {
+            polling.set(false);
+        }
+    }
+
+    /**
+     * Grows the poll interval if nothing changed since the previous poll.
+     */
+    private void adaptPollInterval() {
+        boolean changed = stateChanged;
+        stateChanged = false;
+        if (pollInterval.isAdaptive() && (changed ? pollInterval.changed() : pollInterval.stable())) {
+            applyPollInterval();
+        }
+    }
+
+    /**
+     * Polls at the minimum interval again after a command or a state change.
+     */
+    protected void activitySeen() {
+        stateChanged = true;
+        if (pollInterval.changed()) {
+            applyPollInterval();
+        }
+    }
+
+    private void applyPollInterval() {
+        long interval = pollInterval.getCurrent();
+        Poll job = pollingJob;
+        if (job != null) {
+            job.setInterval(interval, TimeUnit.SECONDS);
+        }
+        updateProperty(PROPERTY_EFFECTIVE_REFRESH_INTERVAL, String.valueOf(interval));
+        logger.debug("Polling '{}' every {}s", getThing().getUID(), interval);
+    }
+
+    /**
+     * Only emits states that changed beyond the deadband of their channel, see {@link ChannelStateCache}.
+     */
+    @Override
+    protected void updateState(ChannelUID channelUID, State state) {
+        if (CHANNEL_COMMAND.equals(channelUID.getId())) {
+            // a command response is emitted even if it repeats the previous one
+            super.updateState(channelUID, state);
+            return;
+        }
+        switch (stateCache.update(channelUID.getId(), state, System.nanoTime())) {
+            case CHANGED:
+                activitySeen();
+                super.updateState(channelUID, state);
+                break;
+            case REFRESH:
+                super.updateState(channelUID, state);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Reads the deadband of a channel from its configuration, falling back to the binding defaults for the
+     * channel.
+     */
+    private Deadband getDeadband(String channelId) {
+        Deadband fallback = DEFAULT_DEADBANDS.getOrDefault(channelId, Deadband.NONE);
+        Channel channel = getThing().getChannel(channelId);
+        if (channel == null) {
+            return fallback;
+        }
+        Configuration config = channel.getConfiguration();
+        Object absolute = config.get(CONFIG_DEADBAND);
+        Object percent = config.get(CONFIG_DEADBAND_PERCENT);
+        Object maxSilence = config.get(CONFIG_MAX_SILENCE);
+        if (absolute == null && percent == null && maxSilence == null) {
+            return fallback;
+        }
+        try {
+            return new Deadband(absolute != null ? new BigDecimal(absolute.toString()) : BigDecimal.ZERO,
+                    percent != null ? new BigDecimal(percent.toString()) : BigDecimal.ZERO,
+                    maxSilence != null ? new BigDecimal(maxSilence.toString()).longValue() : 0);
+        } catch (NumberFormatException e) {
+            logger.debug("Invalid deadband of channel {}: {}", channelId, e.getMessage());
+            return fallback;
+        }
+    }
+
     private boolean tokenCheckPass(String tokenString) {
         switch (tokenString.length()) {
             case 16:
@@ -129,14 +273,15 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
 
     @Override
     public void dispose() {
-        if (pollingJob != null) {
-            pollingJob.cancel(true);
+        Poll job = pollingJob;
+        if (job != null) {
+            job.cancel();
             pollingJob = null;
         }
         if (miioCom != null) {
             lastId = miioCom.getId();
             miioCom.unregisterListener(this);
-            miioCom.close();
+            registry.release(miioCom);
             miioCom = null;
         }
     }
@@ -149,12 +294,75 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
         if (!hasConnection()) {
             return 0;
         }
+        if (!command.isRead()) {
+            propertyCache.onWrite();
+        }
+        commandsSent.incrementAndGet();
         return getConnection().queueCommand(command, params);
     }
 
-    protected int sendCommand(String commandString) {
+    /**
+     * Reads a property of the device through the {@link PropertyCache}. Replies also reach
+     * {@link #messageReceived(MiIoSendCommand)} as usual.
+     */
+    protected <T> CompletableFuture<T> readProperty(Property<T> property) {
+        return propertyCache.get(property);
+    }
+
+    private CompletableFuture<MiIoSendCommand> fetchProperty(Property<?> property) {
         if (!hasConnection()) {
-            return 0;
+            CompletableFuture<MiIoSendCommand> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No connection to " + configuration.host));
+            return failed;
+        }
+        commandsSent.incrementAndGet();
+        return miioCom.sendCommandAsync(property.getCommand(), property.getParams());
+    }
+
+    /**
+     * Answers a REFRESH of a channel. Requests of the same thing arriving within {@link #REFRESH_WINDOW} ms share
+     * one poll, and each requesting channel is emitted from its result even if the state did not change.
+     */
+    protected void refreshChannel(ChannelUID channelUID) {
+        stateCache.force(channelUID.getId());
+        refreshRequests.add(channelUID);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(() -> transport.runBlocking(this::refreshRequested), REFRESH_WINDOW,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refreshRequested() {
+        refreshScheduled.set(false);
+        List<ChannelUID> channels = new ArrayList<>(refreshRequests);
+        refreshRequests.removeAll(channels);
+        if (channels.isEmpty()) {
+            return;
+        }
+        logger.debug("Refreshing '{}' for {} channels", getThing().getUID(), channels.size());
+        int sent = commandsSent.get();
+        update(false);
+        if (sent == commandsSent.get()) {
+            // everything came from the caches, so no reply will answer the channels
+            long now = System.nanoTime();
+            for (ChannelUID channel : channels) {
+                State state = stateCache.takeForced(channel.getId(), now);
+                if (state != null) {
+                    super.updateState(channel, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a command typed as {@code method[params]}. The future completes with the command once it has a
+     * response.
+     */
+    protected CompletableFuture<MiIoSendCommand> sendCommandAsync(String commandString) {
+        if (!hasConnection()) {
+            CompletableFuture<MiIoSendCommand> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No connection to " + configuration.host));
+            return failed;
         }
         String command = commandString.trim();
         String param = "[]";
@@ -164,12 +372,11 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
             param = command.substring(loc).trim();
             command = command.substring(0, loc).trim();
         }
-        try {
-            return miioCom.queueCommand(command, param);
-        } catch (IOException e) {
-            disconnected(e.getMessage());
+        if (!MiIoCommand.getCommand(command).isRead()) {
+            propertyCache.onWrite();
         }
-        return 0;
+        // typed by a user, so it never waits behind polling even if it is a read
+        return miioCom.sendCommandAsync(command, param, CommandPriority.INTERACTIVE);
     }
 
     protected void disconnected(String message) {
@@ -191,32 +398,66 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
             return miioCom;
         }
         String deviceId = configuration.deviceId;
+        Communication connection = null;
         try {
-            if (deviceId != null && deviceId.length() == 8 && tokenCheckPass(configuration.token)) {
-                miioCom = new Communication(configuration.host, token, Utils.hexStringToByteArray(deviceId), lastId, configuration.timeout);
-                Message miIOResponse = miioCom.sendPing(configuration.host);
-                if (miIOResponse != null) {
-                    miioCom.registerLisener(this);
-                    return miioCom;
-                } else {
-                    Communication miioCom = new Communication(configuration.host, token, new byte[0], lastId, configuration.timeout);
-                    Message miIoResponse = miioCom.sendPing(configuration.host);
-                    if (miIoResponse != null) {
-                        deviceId = Utils.getHex(miIoResponse.getDeviceId());
-                        miioCom.setDeviceID(miIoResponse.getDeviceId());
-                        updateDeviceIdConfig(deviceId);
-                        miioCom.registerLisener(this);
-                        return miioCom;
-                    }
+            if (!tokenCheckPass(configuration.token)) {
+                return null;
+            }
+            byte[] did;
+            if (deviceId != null && deviceId.length() == 8) {
+                did = Utils.hexStringToByteArray(deviceId);
+            } else {
+                did = registry.discoverDeviceId(configuration.host, token, configuration.timeout);
+                if (did == null) {
+                    return null;
                 }
+                updateDeviceIdConfig(Utils.getHex(did));
             }
-            return null;
+            connection = registry.acquire(configuration.host, token, did, lastId, configuration.timeout);
+            Message miIoResponse = connection.sendPing(configuration.host);
+            if (miIoResponse != null && !Arrays.equals(did, miIoResponse.getDeviceId())) {
+                // the configured device ID is wrong, switch over to the session of the ID the device reports
+                registry.release(connection);
+                connection = null;
+                did = miIoResponse.getDeviceId();
+                updateDeviceIdConfig(Utils.getHex(did));
+                connection = registry.acquire(configuration.host, token, did, lastId, configuration.timeout);
+                miIoResponse = connection.sendPing(configuration.host);
+            }
+            if (miIoResponse == null) {
+                registry.release(connection);
+                return null;
+            }
+            configureConnection(connection);
+            connection.registerLisener(this);
+            miioCom = connection;
+            return connection;
         } catch (Exception e) {
             logger.debug("error {}", e.getMessage());
+            if (connection != null) {
+                // every failed attempt would otherwise keep one more reference to the shared session
+                connection.unregisterListener(this);
+                registry.release(connection);
+            }
             return null;
         }
     }
 
+    private void configureConnection(Communication connection) {
+        connection.setMaxInFlight(configuration.maxInFlight);
+        connection.setHandshakeTtl(configuration.handshakeTtl);
+        connection.setMaxBatchProperties(Devices.getType(configuration.model).getMaxProperties());
+        QueuePolicy policy = QueuePolicy.DROP_OLDEST_READ;
+        if (configuration.queuePolicy != null) {
+            try {
+                policy = QueuePolicy.valueOf(configuration.queuePolicy);
+            } catch (IllegalArgumentException e) {
+                logger.debug("Unknown queue policy {}, using {}", configuration.queuePolicy, policy);
+            }
+        }
+        connection.setQueueLimits(configuration.queueCapacity, policy, configuration.queueTimeout);
+    }
+
     private void updateDeviceIdConfig(String deviceId) {
         if (deviceId != null) {
             updateProperty(Thing.PROPERTY_SERIAL_NUMBER, deviceId);
@@ -231,12 +472,8 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
         if (!hasConnection()) {
             return true;
         }
-        if (getThing().getStatusInfo().getStatusDetail().equals(ThingStatusDetail.COMMUNICATION_ERROR)) {
-            try {
-                miioCom.queueCommand(MiIoCommand.MIIO_INFO);
-            } catch (IOException e) {
-
-            }
+        if (miioCom.getCircuitState() != CircuitBreaker.State.CLOSED) {
+            // the transport probes the device itself and brings the thing back online
             return true;
         }
         if (miioCom.getQueueLenth() > MAX_QUEUE) {
@@ -269,32 +506,18 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
     }
 
     protected boolean initializeData() {
-        initializeNetwoekCache();
         this.miioCom = getConnection();
         return true;
     }
 
-    protected void initializeNetwoekCache() {
-        network = new ExpiringCache<String>(CACHE_EXPIRY_NETWORK, () -> {
-            try {
-                int ret = sendCommand(MiIoCommand.MIIO_INFO);
-                if (ret != 0) {
-                    return "id:" + ret;
-                }
-            } catch (Exception e) {
-                logger.debug("Error during network status refresh: {}", e.getMessage(), e);
+    protected void refreshNetwork() {
+        readProperty(NETWORK).whenComplete((networkData, error) -> {
+            if (error != null) {
+                logger.debug("Error during network status refresh: {}", error.getMessage());
             }
-            return null;
         });
     }
 
-    protected void refreshNetwork() {
-        if (network == null) {
-            initializeNetwoekCache();
-        }
-        network.getValue();
-    }
-
     protected void defineDeviceType(JsonObject miioInfo) {
         updateProperties(miioInfo);
         isIdentified = updateThingType(miioInfo);
@@ -317,6 +540,9 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
     protected boolean updateThingType(JsonObject miioInfo) {
         String model = miioInfo.get("model").getAsString();
         miDevices = Devices.getType(model);
+        if (miioCom != null) {
+            miioCom.setMaxBatchProperties(miDevices.getMaxProperties());
+        }
         if (configuration.model == null || configuration.model.isEmpty()) {
             Configuration config = editConfiguration();
             config.put(PROPERTY_MODEL, model);
@@ -346,8 +572,9 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
     }
 
     private void changeType(final String modelId) {
-        if (pollingJob != null) {
-            pollingJob.cancel(true);
+        Poll job = pollingJob;
+        if (job != null) {
+            job.cancel();
             pollingJob = null;
         }
         scheduler.schedule(() -> {
@@ -363,11 +590,12 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
 
     public void messageReceived(MiIoSendCommand response) {
         if (response.isError()) {
-            if (MiIoCommand.MIIO_INFO.equals(response.getCommand()) && network != null) {
-                network.invalidateValue();
+            if (MiIoCommand.MIIO_INFO.equals(response.getCommand())) {
+                propertyCache.invalidate(NETWORK);
             }
             return;
         }
+        propertyCache.update(response);
         try {
             switch (response.getCommand()) {
                 case MIIO_INFO:
@@ -379,10 +607,6 @@ public abstract class MiIoHandler extends BaseThingHandler implements MessageLis
                 default:
                     break;
             }
-            if (cmds.containsKey(response.getId())){
-                updateState(CHANNEL_COMMAND, new StringType(response.getResponse().toString()));
-                cmds.remove(response.getId());
-            }
         }catch (Exception e){
             logger.debug("Error while handing message {}", response.getResponse(), e);
         }
@@ -101,8 +101,13 @@ public class MyXiaoMiBindingConstants {
     public static final String PROPERTY_TOKEN = "token";
     public static final String PROPERTY_MODEL = "model";
     public static final String PROPERTY_REFRESH_INTERVAL = "refreshInterval";
+    public static final String PROPERTY_EFFECTIVE_REFRESH_INTERVAL = "effectiveRefreshInterval";
     public static final String PROPERTY_TIMEOUT = "timeout";
 
+    public static final String CONFIG_DEADBAND = "deadband";
+    public static final String CONFIG_DEADBAND_PERCENT = "deadbandPercent";
+    public static final String CONFIG_MAX_SILENCE = "maxSilence";
+
     public static final byte[] DISCOVER_STRING = Utils
             .hexStringToByteArray("21310020ffffffffffffffffffffffffffffffffffffffffffffffffffffffff");
     public static final int PORT = 54321;
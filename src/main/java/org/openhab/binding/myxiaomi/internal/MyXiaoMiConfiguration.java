@@ -29,5 +29,11 @@ public class MyXiaoMiConfiguration {
     public String deviceId;
     public String model;
     public int refreshInterval;
+    public int maxRefreshInterval;
     public int timeout;
+    public int maxInFlight;
+    public int handshakeTtl;
+    public int queueCapacity;
+    public String queuePolicy;
+    public int queueTimeout;
 }
@@ -17,6 +17,7 @@ import static org.openhab.binding.myxiaomi.internal.MyXiaoMiBindingConstants.*;
 import com.google.gson.JsonParser;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.core.library.types.StringType;
 import org.eclipse.smarthome.core.thing.ChannelUID;
 import org.eclipse.smarthome.core.thing.Thing;
 import org.eclipse.smarthome.core.thing.ThingStatus;
@@ -25,6 +26,7 @@ import org.eclipse.smarthome.core.thing.binding.ThingHandlerService;
 import org.eclipse.smarthome.core.types.Command;
 import org.eclipse.smarthome.core.types.RefreshType;
 import org.openhab.binding.myxiaomi.entity.Devices;
+import org.openhab.binding.myxiaomi.internal.transport.MiIoSessionRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,19 +56,26 @@ public class MyXiaoMiHandler extends MiIoHandler {
 
 
 
-    public MyXiaoMiHandler(Thing thing) {
-        super(thing);
+    public MyXiaoMiHandler(Thing thing, MiIoSessionRegistry registry) {
+        super(thing, registry);
     }
 
     @Override
     public void handleCommand(ChannelUID channelUID, Command command) {
        if (command == RefreshType.REFRESH){
            logger.debug("refreshing {}", channelUID);
-           updateData();
+           refreshChannel(channelUID);
            return;
        }
        if (channelUID.getId().equals(CHANNEL_COMMAND)){
-           cmds.put(sendCommand(command.toString()), command.toString());
+           activitySeen();
+           sendCommandAsync(command.toString()).whenComplete((response, error) -> {
+               if (response != null) {
+                   updateState(CHANNEL_COMMAND, new StringType(response.getResponse().toString()));
+               } else {
+                   logger.debug("Command {} to '{}' failed: {}", command, getThing().getUID(), error.getMessage());
+               }
+           });
        }
     }
 
@@ -15,6 +15,7 @@ package org.openhab.binding.myxiaomi.internal;
 import static org.openhab.binding.myxiaomi.internal.MyXiaoMiBindingConstants.*;
 
 import java.util.Collections;
+import java.util.Dictionary;
 import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
@@ -24,7 +25,12 @@ import org.eclipse.smarthome.core.thing.ThingTypeUID;
 import org.eclipse.smarthome.core.thing.binding.BaseThingHandlerFactory;
 import org.eclipse.smarthome.core.thing.binding.ThingHandler;
 import org.eclipse.smarthome.core.thing.binding.ThingHandlerFactory;
+import org.openhab.binding.myxiaomi.internal.transport.MiIoSessionRegistry;
+import org.openhab.binding.myxiaomi.internal.transport.MiIoTransport;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The {@link MyXiaoMiHandlerFactory} is responsible for creating things and thing
@@ -38,6 +44,13 @@ public class MyXiaoMiHandlerFactory extends BaseThingHandlerFactory {
 
     private static final Set<ThingTypeUID> SUPPORTED_THING_TYPES_UIDS = Collections.singleton(THING_TYPE_UNSUPPORTED);
 
+    private static final String CONFIG_VIRTUAL_THREADS = "virtualThreads";
+    private static final String CONFIG_POLL_BUDGET = "pollBudget";
+
+    private final Logger logger = LoggerFactory.getLogger(MyXiaoMiHandlerFactory.class);
+    private final MiIoTransport transport = new MiIoTransport();
+    private final MiIoSessionRegistry registry = new MiIoSessionRegistry(transport);
+
     @Override
     public boolean supportsThingType(ThingTypeUID thingTypeUID) {
         return SUPPORTED_THING_TYPES_UIDS.contains(thingTypeUID);
@@ -48,9 +61,31 @@ public class MyXiaoMiHandlerFactory extends BaseThingHandlerFactory {
         ThingTypeUID thingTypeUID = thing.getThingTypeUID();
 
         if (THING_TYPE_UNSUPPORTED.equals(thingTypeUID)) {
-            return new MyXiaoMiHandler(thing);
+            return new MyXiaoMiHandler(thing, registry);
         }
 
         return null;
     }
+
+    @Override
+    protected void activate(ComponentContext componentContext) {
+        super.activate(componentContext);
+        Dictionary<String, Object> properties = componentContext.getProperties();
+        Object virtualThreads = properties != null ? properties.get(CONFIG_VIRTUAL_THREADS) : null;
+        transport.setVirtualThreads(virtualThreads != null && Boolean.parseBoolean(virtualThreads.toString()));
+        Object pollBudget = properties != null ? properties.get(CONFIG_POLL_BUDGET) : null;
+        if (pollBudget != null) {
+            try {
+                registry.getPollScheduler().setBudget(Integer.parseInt(pollBudget.toString()));
+            } catch (NumberFormatException e) {
+                logger.debug("Invalid poll budget '{}', keeping the default", pollBudget);
+            }
+        }
+    }
+
+    @Override
+    protected void deactivate(ComponentContext componentContext) {
+        registry.close();
+        super.deactivate(componentContext);
+    }
 }
@@ -0,0 +1,290 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal;
+
+import com.google.gson.JsonElement;
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The {@link PropertyCache} holds the decoded values of the properties of one device, each for the time to live of
+ * its {@link Property}. Concurrent reads of a missing or expired property share a single fetch. Replies that arrive
+ * for other reasons refresh the cache too, and writes to the device invalidate the properties they may change.
+ *
+ * @author zaoweiceng
+ */
+@NonNullByDefault
+public class PropertyCache {
+    private final Function<Property<?>, CompletableFuture<MiIoSendCommand>> fetcher;
+    private final Map<Property<?>, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+
+    /**
+     * @param fetcher sends the command of a property to the device
+     */
+    public PropertyCache(Function<Property<?>, CompletableFuture<MiIoSendCommand>> fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Returns the cached value of the property, fetching it from the device if it is missing or expired.
+     */
+    public <T> CompletableFuture<T> get(Property<T> property) {
+        Entry entry = entries.computeIfAbsent(property, p -> new Entry());
+        CompletableFuture<Object> loading;
+        long generation;
+        synchronized (entry) {
+            Object value = entry.value;
+            if (value != null && System.nanoTime() - entry.expiresAt < 0) {
+                hits.incrementAndGet();
+                return CompletableFuture.completedFuture(property.type.cast(value));
+            }
+            CompletableFuture<Object> running = entry.loading;
+            if (running != null) {
+                return running.thenApply(property.type::cast);
+            }
+            loading = new CompletableFuture<>();
+            entry.loading = loading;
+            generation = entry.generation;
+            fetches.incrementAndGet();
+        }
+        CompletableFuture<MiIoSendCommand> fetch;
+        try {
+            fetch = fetcher.apply(property);
+        } catch (RuntimeException e) {
+            fetch = new CompletableFuture<>();
+            fetch.completeExceptionally(e);
+        }
+        fetch.whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    loading.completeExceptionally(error);
+                } else if (response.isError()) {
+                    loading.completeExceptionally(
+                            new IllegalStateException("Device returned an error: " + response.getResponse()));
+                } else {
+                    T value = property.decoder.apply(response.getResult());
+                    synchronized (entry) {
+                        // a write while the fetch was under way may have made the value stale already
+                        if (entry.generation == generation) {
+                            entry.store(value, property.ttl);
+                        }
+                    }
+                    loading.complete(value);
+                }
+            } catch (RuntimeException e) {
+                loading.completeExceptionally(e);
+            } finally {
+                synchronized (entry) {
+                    if (entry.loading == loading) {
+                        entry.loading = null;
+                    }
+                }
+            }
+        });
+        return loading.thenApply(property.type::cast);
+    }
+
+    /**
+     * @return the value of the property even if it expired, or null if it was never read or was invalidated
+     */
+    public <T> @Nullable T getIfPresent(Property<T> property) {
+        Entry entry = entries.get(property);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            Object value = entry.value;
+            return value != null ? property.type.cast(value) : null;
+        }
+    }
+
+    /**
+     * Makes the cache pick up replies for the property before it is first read, see
+     * {@link #update(MiIoSendCommand)}.
+     */
+    public void register(Property<?> property) {
+        entries.computeIfAbsent(property, p -> new Entry());
+    }
+
+    /**
+     * Stores the result of a reply for the property it answers, if any. A reply to a read that was queued before the
+     * property was last invalidated may predate a write and is not stored.
+     */
+    public void update(MiIoSendCommand response) {
+        if (response.isError()) {
+            return;
+        }
+        for (Property<?> property : entries.keySet()) {
+            if (property.answeredBy(response)) {
+                Object value;
+                try {
+                    value = property.decoder.apply(response.getResult());
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                Entry entry = entries.computeIfAbsent(property, p -> new Entry());
+                synchronized (entry) {
+                    if (response.getQueuedAt() - entry.invalidatedAt >= 0) {
+                        entry.store(value, property.ttl);
+                    }
+                }
+            }
+        }
+    }
+
+    public void invalidate(Property<?> property) {
+        Entry entry = entries.get(property);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Invalidates every property that a write to the device may change.
+     */
+    public void onWrite() {
+        for (Map.Entry<Property<?>, Entry> e : entries.entrySet()) {
+            if (e.getKey().invalidatedByWrites) {
+                synchronized (e.getValue()) {
+                    e.getValue().invalidate();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                entry.invalidate();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getFetchCount() {
+        return fetches.get();
+    }
+
+    /**
+     * A device property read with a command and its params. Properties read with the same command and params into
+     * the same type share one cache entry.
+     *
+     * @param <T> type of the decoded value
+     */
+    public static final class Property<T> {
+        private final String name;
+        private final MiIoCommand command;
+        private final String params;
+        private final Class<T> type;
+        private final Function<JsonElement, T> decoder;
+        private final long ttl;
+        private final boolean invalidatedByWrites;
+
+        /**
+         * @param ttl time to live in milliseconds
+         * @param invalidatedByWrites false for properties no command to the device can change
+         */
+        public Property(String name, MiIoCommand command, Class<T> type, Function<JsonElement, T> decoder, long ttl,
+                boolean invalidatedByWrites) {
+            this(name, command, MiIoCodec.NO_PARAMS, type, decoder, ttl, invalidatedByWrites);
+        }
+
+        /**
+         * @param params params of the command, for example the property names of a get_prop
+         * @param ttl time to live in milliseconds
+         * @param invalidatedByWrites false for properties no command to the device can change
+         */
+        public Property(String name, MiIoCommand command, String params, Class<T> type,
+                Function<JsonElement, T> decoder, long ttl, boolean invalidatedByWrites) {
+            this.name = name;
+            this.command = command;
+            this.params = MiIoCodec.normalize(params);
+            this.type = type;
+            this.decoder = decoder;
+            this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+            this.invalidatedByWrites = invalidatedByWrites;
+        }
+
+        public MiIoCommand getCommand() {
+            return command;
+        }
+
+        public String getParams() {
+            return params;
+        }
+
+        boolean answeredBy(MiIoSendCommand response) {
+            return command.equals(response.getCommand()) && params.equals(response.getParams());
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Property)) {
+                return false;
+            }
+            Property<?> other = (Property<?>) obj;
+            return command.equals(other.command) && params.equals(other.params) && type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * command.hashCode() + params.hashCode()) * 31 + type.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class Entry {
+        @Nullable
+        Object value;
+        long expiresAt;
+        long generation;
+        long invalidatedAt = System.nanoTime();
+        @Nullable
+        CompletableFuture<Object> loading;
+
+        void store(Object value, long ttl) {
+            this.value = value;
+            this.expiresAt = System.nanoTime() + ttl;
+        }
+
+        void invalidate() {
+            value = null;
+            generation++;
+            invalidatedAt = System.nanoTime();
+            loading = null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The {@link CircuitBreaker} tracks whether a device is reachable. After a number of consecutive failures the
+ * circuit opens and requests fail fast; probes are then allowed with an exponentially growing, jittered delay.
+ * A successful probe closes the circuit again, a failed one re-opens it with a longer delay.
+ *
+ * @author zaoweiceng
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    private volatile State state = State.CLOSED;
+    private int failures;
+    private int opened;
+    private long nextProbeAt;
+
+    /**
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param baseDelay delay in nanoseconds before the first probe
+     * @param maxDelay upper bound of the probe delay in nanoseconds
+     */
+    public CircuitBreaker(int failureThreshold, long baseDelay, long maxDelay) {
+        this.failureThreshold = failureThreshold;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Records a failed request or probe.
+     *
+     * @return true if the circuit opened because of this failure
+     */
+    public synchronized boolean onFailure(long now) {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            boolean wasClosed = state == State.CLOSED;
+            open(now);
+            return wasClosed;
+        }
+        return false;
+    }
+
+    /**
+     * Records a reply to a request.
+     *
+     * @return true if the circuit closed because of this success
+     */
+    public synchronized boolean onSuccess() {
+        failures = 0;
+        if (state == State.CLOSED) {
+            return false;
+        }
+        state = State.CLOSED;
+        opened = 0;
+        return true;
+    }
+
+    /**
+     * Records an answered probe. The circuit closes, but the failures stay one short of the threshold and the probe
+     * delay is kept, so the first failed request opens it again with a longer delay. Only a real reply resets both.
+     *
+     * @return true if the circuit closed because of this probe
+     */
+    public synchronized boolean onProbeSuccess() {
+        if (state != State.HALF_OPEN) {
+            return false;
+        }
+        state = State.CLOSED;
+        failures = failureThreshold - 1;
+        return true;
+    }
+
+    /**
+     * Moves an open circuit to half open once the probe delay has passed.
+     *
+     * @return true if the caller should send a probe now
+     */
+    public synchronized boolean tryProbe(long now) {
+        if (state != State.OPEN || now - nextProbeAt < 0) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    /**
+     * @return time in nanoseconds at which the next probe is due, only meaningful while the circuit is open
+     */
+    public synchronized long getNextProbeAt() {
+        return nextProbeAt;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        long delay = baseDelay << Math.min(opened, 20);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        opened++;
+        // +/- 25% jitter keeps devices that dropped off together from probing in lockstep
+        long jitter = (long) (delay * (ThreadLocalRandom.current().nextDouble() - 0.5) / 2);
+        nextProbeAt = now + delay + jitter;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state + " (failures=" + failures + ", opened=" + opened + ")";
+    }
+}
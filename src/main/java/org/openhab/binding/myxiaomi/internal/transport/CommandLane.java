@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CommandLane} is the FIFO of one {@link CommandPriority} of a device, together with its depth and the
+ * time commands spent waiting in it. A lane is changed only under the queue lock of its {@link Communication}, its
+ * statistics may be read from any thread.
+ *
+ * @author zaoweiceng
+ */
+public class CommandLane {
+    private final CommandPriority priority;
+    private final ArrayDeque<MiIoSendCommand> queue = new ArrayDeque<>();
+    private volatile int depth;
+    private volatile long dequeued;
+    private volatile long totalWait;
+    private volatile long lastWait;
+    private volatile long maxWait;
+
+    CommandLane(CommandPriority priority) {
+        this.priority = priority;
+    }
+
+    public CommandPriority getPriority() {
+        return priority;
+    }
+
+    void offer(MiIoSendCommand command) {
+        queue.add(command);
+        depth = queue.size();
+    }
+
+    @Nullable
+    MiIoSendCommand peek() {
+        return queue.peek();
+    }
+
+    /**
+     * Takes the head of the lane and records how long it waited.
+     */
+    @Nullable
+    MiIoSendCommand poll() {
+        MiIoSendCommand command = queue.poll();
+        if (command != null) {
+            depth = queue.size();
+            long wait = System.nanoTime() - command.getQueuedAt();
+            lastWait = wait;
+            maxWait = Math.max(maxWait, wait);
+            totalWait += wait;
+            dequeued++;
+        }
+        return command;
+    }
+
+    /**
+     * Removes the oldest queued read command to make room in a full queue.
+     */
+    @Nullable
+    MiIoSendCommand removeOldestRead() {
+        Iterator<MiIoSendCommand> it = queue.iterator();
+        while (it.hasNext()) {
+            MiIoSendCommand command = it.next();
+            if (command.getCommand().isRead()) {
+                it.remove();
+                depth = queue.size();
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes every queued command.
+     *
+     * @return the removed commands in queue order
+     */
+    List<MiIoSendCommand> clear() {
+        List<MiIoSendCommand> cleared = new ArrayList<>(queue);
+        queue.clear();
+        depth = 0;
+        return cleared;
+    }
+
+    /**
+     * @return number of queued commands
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return number of commands taken off the lane so far
+     */
+    public long getDequeued() {
+        return dequeued;
+    }
+
+    /**
+     * @return time in nanoseconds the last command taken off the lane had been waiting
+     */
+    public long getLastWait() {
+        return lastWait;
+    }
+
+    /**
+     * @return longest time in nanoseconds a command has been waiting in the lane
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @return average time in nanoseconds commands have been waiting in the lane
+     */
+    public long getAverageWait() {
+        long count = dequeued;
+        return count == 0 ? 0 : totalWait / count;
+    }
+
+    @Override
+    public String toString() {
+        return priority + "[depth=" + getDepth() + ", lastWait=" + TimeUnit.NANOSECONDS.toMicros(lastWait)
+                + "us, avgWait=" + TimeUnit.NANOSECONDS.toMicros(getAverageWait()) + "us, maxWait="
+                + TimeUnit.NANOSECONDS.toMicros(maxWait) + "us]";
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+/**
+ * The {@link CommandPriority} selects the lane a command is queued in.
+ *
+ * @author zaoweiceng
+ */
+public enum CommandPriority {
+    /**
+     * Commands a user is waiting for, such as switching a device or a command typed into the command channel.
+     */
+    INTERACTIVE,
+    /**
+     * Polling and other reads nobody is actively waiting for.
+     */
+    BACKGROUND
+}
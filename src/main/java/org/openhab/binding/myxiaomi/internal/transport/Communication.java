@@ -14,71 +14,162 @@ package org.openhab.binding.myxiaomi.internal.transport;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.smarthome.core.thing.ThingStatus;
 import org.eclipse.smarthome.core.thing.ThingStatusDetail;
 import org.openhab.binding.myxiaomi.annotation.MessageListener;
 import org.openhab.binding.myxiaomi.entity.MiIoCommand;
 import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
 import org.openhab.binding.myxiaomi.internal.Message;
-import org.openhab.binding.myxiaomi.internal.MiIoCrypto;
+import org.openhab.binding.myxiaomi.internal.MiIoCodec;
+import org.openhab.binding.myxiaomi.internal.MiIoCryptoSession;
 import org.openhab.binding.myxiaomi.internal.MyXiaoMiBindingConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import java.io.IOException;
-import java.net.*;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 /**
  * The {@link Communication} is responsible for creating Xiaomi messages.
+ * It is the per device session on top of the shared {@link MiIoTransport}: commands are queued here and put on
+ * the wire by the transport thread, replies are routed back to {@link #onDatagram(ByteBuffer)}.
  *
  * @author zaoweiceng
  */
 public class Communication {
-    private static final int MSG_BUFFER_SIZE = 2048;
     private final Logger logger = LoggerFactory.getLogger(Communication.class);
 
+    private final MiIoTransport transport;
     private final String ip;
-    private final byte[] token;
-    private byte[] deviceID;
-    private DatagramSocket socket;
+    private final int port;
+    private final MiIoCryptoSession crypto;
+    private volatile byte[] deviceID;
+    private volatile @Nullable InetSocketAddress address;
+    private final boolean pinned;
+    private volatile long resolvedAt;
+    private volatile long lastResolveTime;
+    private volatile long resolveCount;
+    private final AtomicBoolean resolving = new AtomicBoolean();
 
     private List<MessageListener> listeners = new CopyOnWriteArrayList<>();
 
     private AtomicInteger id = new AtomicInteger(-1);
-    private int timeDelta;
+    private volatile int timeDelta;
     private int timeStamp;
-    private final JsonParser parser;
-    private MessageSenderThread senderThread;
-    private boolean connected;
-    private ThingStatusDetail status;
-    private int errorCounter;
+    private volatile boolean connected;
+    private volatile ThingStatusDetail status;
     private int timeout;
-    private boolean needPing = true;
+    private volatile long handshakeTtl = TimeUnit.SECONDS.toNanos(DEFAULT_HANDSHAKE_TTL);
+    private volatile long lastValidReply;
+    private volatile long helloSentAt;
     private static final int MAX_ERRORS = 3;
+    private static final int MAX_INTERACTIVE_BURST = 4;
+    private static final int PAYLOAD_CACHE_SLOTS = 64;
+    // asynchronous commands are given up after this many command timeouts, queueing included
+    private static final int PENDING_TIMEOUTS = 4;
+    private static final long BATCH_WINDOW = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final long DEFAULT_QUEUE_TIMEOUT = 1000;
+    public static final String QUEUE_FULL_ERROR = "Command queue full";
+    private static final long CIRCUIT_BASE_DELAY = TimeUnit.SECONDS.toNanos(5);
+    private static final long CIRCUIT_MAX_DELAY = TimeUnit.MINUTES.toNanos(5);
+    public static final String CIRCUIT_OPEN_ERROR = "Device unreachable, circuit open";
+    public static final String SESSION_CLOSED_ERROR = "Session closed";
+    private static final int MAX_RETRANSMITS = 2;
     private static final int MAX_ID = 15000;
-    private ConcurrentLinkedQueue<MiIoSendCommand> commandConcurrentLinkedQueue = new ConcurrentLinkedQueue<>();
-    public Communication(String ip, byte[] token, byte[] did,  int id, int timeout) {
+    private static final int DEFAULT_HANDSHAKE_TTL = 300;
+    private static final long ADDRESS_TTL = TimeUnit.MINUTES.toNanos(10);
+    private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    // the lanes are guarded by queuedReads
+    private final CommandLane interactive = new CommandLane(CommandPriority.INTERACTIVE);
+    private final CommandLane background = new CommandLane(CommandPriority.BACKGROUND);
+    // interactive commands sent since the last background one, only touched by the transport thread
+    private int interactiveBurst;
+    // free places in both lanes together, coalesced commands take none
+    private final Slots slots = new Slots(DEFAULT_QUEUE_CAPACITY);
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile QueuePolicy queuePolicy = QueuePolicy.DROP_OLDEST_READ;
+    private volatile long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+    // counted by the callers of enqueue outside the queue lock
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    // queued read requests that identical reads may still join, guarded by itself
+    private final Map<String, MiIoSendCommand> queuedReads = new HashMap<>();
+    // get_prop batches per lane that are still queued and open for more properties, guarded by queuedReads
+    private final Map<CommandPriority, PropertyBatch> openBatches = new EnumMap<>(CommandPriority.class);
+    private volatile int maxBatchProperties = 1;
+    private volatile long batchedCount;
+    private volatile long batchSplitCount;
+    private volatile long coalescedCount;
+
+    private volatile int maxInFlight = 1;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long lastQueueLatency;
+    private volatile long invalidChecksums;
+
+    // only touched by the transport thread
+    private final Map<Integer, InFlight> inFlight = new HashMap<>();
+    private final PayloadCache payloads = new PayloadCache(PAYLOAD_CACHE_SLOTS);
+    private final PendingRequests pending = new PendingRequests();
+    // parts of batches the device did not answer, sent before anything else
+    private final Deque<MiIoSendCommand> retries = new ArrayDeque<>();
+    private long batchDeadline;
+    private final RttEstimator rtt;
+    private final CircuitBreaker breaker = new CircuitBreaker(MAX_ERRORS, CIRCUIT_BASE_DELAY, CIRCUIT_MAX_DELAY);
+    private long probeDeadline;
+    private volatile @Nullable CompletableFuture<Message> pendingHello;
+
+    public Communication(MiIoTransport transport, String ip, byte[] token, byte[] did, int id, int timeout) {
+        this(transport, ip, MyXiaoMiBindingConstants.PORT, token, did, id, timeout);
+    }
+
+    /**
+     * @param port UDP port of the device, only devices under test listen on another port than the miIO one
+     */
+    Communication(MiIoTransport transport, String ip, int port, byte[] token, byte[] did, int id, int timeout) {
+        this.transport = transport;
         this.ip = ip;
-        this.token = token;
+        this.port = port;
+        try {
+            this.crypto = new MiIoCryptoSession(token);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/MD5 not available", e);
+        }
         this.deviceID = did;
         this.timeout = timeout;
+        this.rtt = new RttEstimator(TimeUnit.MILLISECONDS.toNanos(timeout));
+        this.pinned = isLiteralAddress(ip);
         setId(id);
-        parser = new JsonParser();
-        senderThread = new MessageSenderThread();
-        senderThread.start();
+        startReciver();
+        try {
+            resolveAddress();
+        } catch (IOException e) {
+            logger.debug("Could not resolve {}: {}", ip, e.getMessage());
+        }
     }
 
     public void setId(int id) {
@@ -97,49 +188,234 @@ public class Communication {
         this.deviceID = deviceID;
     }
     public int getQueueLenth(){
-        return commandConcurrentLinkedQueue.size();
+        return interactive.getDepth() + background.getDepth();
+    }
+
+    /**
+     * Bounds the number of queued commands of this device and sets what happens to commands that do not fit.
+     *
+     * @param timeout time in milliseconds a caller waits for room with {@link QueuePolicy#BLOCK_WITH_TIMEOUT}
+     */
+    public void setQueueLimits(int capacity, QueuePolicy policy, long timeout) {
+        synchronized (slots) {
+            int newCapacity = capacity > 0 ? capacity : DEFAULT_QUEUE_CAPACITY;
+            int delta = newCapacity - queueCapacity;
+            if (delta > 0) {
+                slots.release(delta);
+            } else if (delta < 0) {
+                slots.reduce(-delta);
+            }
+            queueCapacity = newCapacity;
+        }
+        queuePolicy = policy;
+        queueTimeout = Math.max(0, timeout);
+    }
+
+    /**
+     * @return number of commands answered with {@value #QUEUE_FULL_ERROR} because they did not fit the queue
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of queued reads dropped to make room for a newer command
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the queue of the given priority, for its depth and wait time metrics
+     */
+    public CommandLane getLane(CommandPriority priority) {
+        return priority == CommandPriority.INTERACTIVE ? interactive : background;
+    }
+
+    /**
+     * Sets how many requests may be outstanding on the wire for this device at the same time.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        transport.schedule(this);
+    }
+
+    /**
+     * @return number of received messages dropped because their checksum did not match
+     */
+    public long getInvalidChecksumCount() {
+        return invalidChecksums;
+    }
+
+    /**
+     * Sets how many properties may be read with a single get_prop request. With 1, get_prop commands are sent one
+     * by one; the limit is lowered on its own when the device does not answer a batch.
+     */
+    public void setMaxBatchProperties(int maxProperties) {
+        this.maxBatchProperties = Math.max(1, maxProperties);
+    }
+
+    public int getMaxBatchProperties() {
+        return maxBatchProperties;
+    }
+
+    /**
+     * @return number of get_prop commands that shared a request with other get_prop commands
+     */
+    public long getBatchedCount() {
+        return batchedCount;
+    }
+
+    /**
+     * @return number of batches the device did not answer and that were split
+     */
+    public long getBatchSplitCount() {
+        return batchSplitCount;
+    }
+
+    /**
+     * @return number of read commands answered by the reply of an identical queued read
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return time in nanoseconds the last sent command spent between {@link #queueCommand} and the wire
+     */
+    public long getLastQueueLatency() {
+        return lastQueueLatency;
     }
     private List<MessageListener> getListeners(){
         return listeners;
     }
 
     public synchronized void registerLisener(MessageListener listener){
-        needPing = true;
         startReciver();
         if(!getListeners().contains(listener)){
             getListeners().add(listener);
         }
+        if (connected) {
+            // the hello that established the session may have happened before this listener registered
+            pingSuccess();
+        }
     }
 
+    /**
+     * Removes a listener. The queue is dropped once nobody listens any more, closing the session is up to its
+     * owner, see {@link MiIoSessionRegistry#release(Communication)}.
+     */
     public synchronized void unregisterListener(MessageListener listener){
         getListeners().remove(listener);
         if(getListeners().isEmpty()){
-            commandConcurrentLinkedQueue.clear();
-            close();
+            dropQueued();
         }
     }
 
-    private DatagramSocket getSocket() throws SocketException {
-        if (socket == null || socket.isClosed()){
-            socket = new DatagramSocket();
-            socket.setSoTimeout(timeout);
+    /**
+     * Empties both lanes and answers every command that was still queued, so no caller waits for it forever.
+     */
+    private void dropQueued() {
+        List<MiIoSendCommand> dropped = new ArrayList<>();
+        synchronized (queuedReads) {
+            queuedReads.clear();
+            openBatches.clear();
+            dropped.addAll(interactive.clear());
+            dropped.addAll(background.clear());
+            slots.release(dropped.size());
+        }
+        for (MiIoSendCommand command : dropped) {
+            complete(command, errorResponse(SESSION_CLOSED_ERROR));
+        }
+    }
+
+    @Nullable
+    InetSocketAddress getResolvedAddress() {
+        return address;
+    }
+
+    /**
+     * @return the cached device address. An expired address is refreshed in the background while the cached one
+     *         keeps being used, so resolution never delays the transport thread.
+     */
+    private InetSocketAddress getAddress() throws IOException {
+        InetSocketAddress current = address;
+        if (current == null) {
+            refreshAddress();
+            throw new UnknownHostException("Unresolved host " + ip);
+        }
+        if (!pinned && System.nanoTime() - resolvedAt > ADDRESS_TTL) {
+            refreshAddress();
         }
-        return socket;
+        return current;
+    }
+
+    /**
+     * Re-resolves the device host asynchronously. Literal IP addresses are pinned and never resolved again.
+     */
+    void refreshAddress() {
+        if ((pinned && address != null) || !resolving.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                resolveAddress();
+            } catch (IOException e) {
+                logger.debug("Could not resolve {}: {}", ip, e.getMessage());
+            } finally {
+                resolving.set(false);
+            }
+        });
+    }
+
+    private synchronized InetSocketAddress resolveAddress() throws IOException {
+        long start = System.nanoTime();
+        InetSocketAddress resolved = new InetSocketAddress(InetAddress.getByName(ip), port);
+        resolvedAt = System.nanoTime();
+        lastResolveTime = resolvedAt - start;
+        resolveCount++;
+        InetSocketAddress old = address;
+        if (!resolved.equals(old)) {
+            if (old != null) {
+                logger.debug("Address of {} changed from {} to {}", ip, old, resolved);
+                transport.unroute(this, old);
+            }
+            address = resolved;
+            transport.route(this, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return time in nanoseconds the last resolution of the device host took
+     */
+    public long getLastResolveTime() {
+        return lastResolveTime;
+    }
+
+    public long getResolveCount() {
+        return resolveCount;
+    }
+
+    private static boolean isLiteralAddress(String host) {
+        return IPV4_LITERAL.matcher(host).matches() || host.indexOf(':') >= 0;
     }
 
     public void close(){
-        if (socket != null){
-            socket.close();
+        dropQueued();
+        transport.unregister(this);
+        pending.cancelAll();
+        CompletableFuture<Message> hello = pendingHello;
+        if (hello != null) {
+            hello.cancel(false);
         }
-        senderThread.interrupt();
     }
 
     public synchronized void startReciver(){
-        if (senderThread == null){
-            senderThread = new MessageSenderThread();
-        }
-        if (!senderThread.isAlive()){
-            senderThread.start();
+        try {
+            transport.register(this);
+        } catch (IOException e) {
+            logger.warn("Could not start Mi IO transport: {}", e.getMessage());
         }
     }
 
@@ -151,175 +427,722 @@ public class Communication {
         return queueCommand(command.getCommand(), params);
     }
 
+    /**
+     * Queues a command in the background lane if it only reads device state, in the interactive lane otherwise.
+     */
     public int queueCommand(String command, String params) throws IOException {
-        JsonObject fullCommand = new JsonObject();
+        return queueCommand(command, params,
+                MiIoCommand.getCommand(command).isRead() ? CommandPriority.BACKGROUND : CommandPriority.INTERACTIVE);
+    }
+
+    /**
+     * Queues a command in the lane of the given priority. Commands keep their order within a lane; interactive
+     * commands overtake background ones, but at most {@value #MAX_INTERACTIVE_BURST} in a row while background
+     * commands are waiting.
+     */
+    public int queueCommand(String command, String params, CommandPriority priority) throws IOException {
+        MiIoSendCommand sendCmd = newCommand(command, params);
+        enqueue(sendCmd, priority);
+        return sendCmd.getId();
+    }
+
+    public CompletableFuture<MiIoSendCommand> sendCommandAsync(MiIoCommand command, String params) {
+        return sendCommandAsync(command.getCommand(), params);
+    }
+
+    public CompletableFuture<MiIoSendCommand> sendCommandAsync(String command, String params) {
+        return sendCommandAsync(command, params,
+                MiIoCommand.getCommand(command).isRead() ? CommandPriority.BACKGROUND : CommandPriority.INTERACTIVE);
+    }
+
+    /**
+     * Queues a command like {@link #queueCommand(String, String, CommandPriority)} and returns a future that
+     * completes with the command once it has a response, check {@link MiIoSendCommand#isError()} for errors
+     * reported by the device or the transport. A command the device does not answer in time completes with the
+     * "No Response" error as well. A command still queued when the last listener is removed or the session is
+     * closed completes with the {@link #SESSION_CLOSED_ERROR} error, one already sent is cancelled on close.
+     * Listeners are informed as well.
+     */
+    public CompletableFuture<MiIoSendCommand> sendCommandAsync(String command, String params,
+            CommandPriority priority) {
+        try {
+            MiIoSendCommand sendCmd = newCommand(command, params);
+            CompletableFuture<MiIoSendCommand> future = pending.register(sendCmd,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) * PENDING_TIMEOUTS);
+            enqueue(sendCmd, priority);
+            return future;
+        } catch (RuntimeException e) {
+            CompletableFuture<MiIoSendCommand> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * @return number of asynchronous commands waiting for their response
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return number of asynchronous commands failed because they were never completed, see {@link PendingRequests}
+     */
+    public long getExpiredCount() {
+        return pending.getExpiredCount();
+    }
+
+    private MiIoSendCommand newCommand(String command, String params) {
+        String normalizedParams = MiIoCodec.normalize(params);
+        return new MiIoSendCommand(nextId(), MiIoCommand.getCommand(command), command, normalizedParams);
+    }
+
+    private void enqueue(MiIoSendCommand sendCmd, CommandPriority priority) {
+        int cmdId = sendCmd.getId();
+        String command = sendCmd.getMethod();
+        String normalizedParams = sendCmd.getParams();
+        MiIoCommand miIoCommand = sendCmd.getCommand();
+        if (!breaker.allowRequest()) {
+            complete(sendCmd, errorResponse(CIRCUIT_OPEN_ERROR));
+            return;
+        }
+        String key = miIoCommand.isRead() ? priority + command + normalizedParams : null;
+        int propertyCount = miIoCommand == MiIoCommand.GET_PROPERTY && maxBatchProperties > 1
+                ? MiIoCodec.countFlatArray(normalizedParams)
+                : -1;
+        boolean batchable = propertyCount > 0;
+        boolean reserved = false;
+        boolean waited = false;
+        while (true) {
+            MiIoSendCommand dropped = null;
+            synchronized (queuedReads) {
+                MiIoSendCommand queued = key != null ? queuedReads.get(key) : null;
+                if (queued != null) {
+                    if (reserved) {
+                        slots.release();
+                    }
+                    queued.coalesce(sendCmd);
+                    coalescedCount++;
+                    logger.trace("Command {} to {} joins queued command {}", cmdId, ip, queued.getId());
+                    return;
+                }
+                PropertyBatch batch = batchable ? openBatches.get(priority) : null;
+                if (batch != null && batch.add(sendCmd, propertyCount, maxBatchProperties)) {
+                    if (reserved) {
+                        slots.release();
+                    }
+                    queuedReads.put(key, sendCmd);
+                    logger.trace("Command {} to {} joins batch {}", cmdId, ip, batch.getId());
+                    return;
+                }
+                if (!reserved) {
+                    reserved = slots.tryAcquire();
+                }
+                if (!reserved && queuePolicy == QueuePolicy.DROP_OLDEST_READ) {
+                    dropped = background.removeOldestRead();
+                    if (dropped == null) {
+                        dropped = interactive.removeOldestRead();
+                    }
+                    if (dropped != null) {
+                        // the dropped command hands its place over to the new one
+                        unindex(dropped);
+                        reserved = true;
+                    }
+                }
+                if (reserved) {
+                    if (key != null) {
+                        queuedReads.put(key, sendCmd);
+                    } else {
+                        // reads queued before a write must not answer reads issued after it
+                        queuedReads.clear();
+                        openBatches.clear();
+                    }
+                    if (batchable) {
+                        batch = new PropertyBatch(nextId());
+                        batch.add(sendCmd, propertyCount, maxBatchProperties);
+                        openBatches.put(priority, batch);
+                        getLane(priority).offer(batch);
+                    } else {
+                        getLane(priority).offer(sendCmd);
+                    }
+                }
+            }
+            if (dropped != null) {
+                droppedCount.incrementAndGet();
+                logger.debug("Queue of {} full, dropping command {}", ip, dropped.getId());
+                complete(dropped, errorResponse(QUEUE_FULL_ERROR));
+            }
+            if (reserved) {
+                break;
+            }
+            if (queuePolicy != QueuePolicy.BLOCK_WITH_TIMEOUT || waited) {
+                rejectedCount.incrementAndGet();
+                logger.debug("Queue of {} full, rejecting command {}", ip, cmdId);
+                complete(sendCmd, errorResponse(QUEUE_FULL_ERROR));
+                return;
+            }
+            waited = true;
+            try {
+                reserved = slots.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!isHandshakeValid()) {
+            rehandshake();
+        }
+        transport.schedule(this);
+    }
+
+    /**
+     * Called by the transport thread: expires outstanding requests and fills the in-flight window from the queue.
+     * While the circuit is not closed nothing but the probe goes on the wire.
+     */
+    void service(long now) {
+        batchDeadline = 0;
+        if (!inFlight.isEmpty()) {
+            boolean expired = false;
+            Iterator<InFlight> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                InFlight request = it.next();
+                if (now - request.deadline < 0) {
+                    continue;
+                }
+                if (!expired) {
+                    // one loss event per pass however many requests it hit, retransmissions use the longer timeout
+                    expired = true;
+                    rtt.backoff();
+                }
+                if (now - request.expiry < 0) {
+                    if (!request.command.getCommand().isRead()) {
+                        // a repeated set could be applied twice, it only waits for a late reply
+                        request.deadline = request.expiry;
+                        continue;
+                    }
+                    if (request.attempts <= MAX_RETRANSMITS) {
+                        request.attempts++;
+                        logger.trace("Retransmitting command {} to {}, {}", request.command.getId(), ip, rtt);
+                        if (!transmit(request, now)) {
+                            it.remove();
+                        }
+                        continue;
+                    }
+                }
+                it.remove();
+                if (request.command instanceof PropertyBatch
+                        && ((PropertyBatch) request.command).getMembers().size() > 1) {
+                    // some devices silently drop a request for more properties than they can answer
+                    splitBatch((PropertyBatch) request.command);
+                    continue;
+                }
+                onNoResponse(request.command);
+            }
+        }
+        if (!breaker.allowRequest()) {
+            failPending();
+            probe(now);
+            return;
+        }
+        while (inFlight.size() < maxInFlight) {
+            MiIoSendCommand next = pollQueued(now, false);
+            if (next == null) {
+                return;
+            }
+            InFlight request = new InFlight(next, now + TimeUnit.MILLISECONDS.toNanos(timeout));
+            inFlight.put(next.getId(), request);
+            if (transmit(request, now)) {
+                lastQueueLatency = System.nanoTime() - next.getQueuedAt();
+                logger.trace("Command {} to {} sent {} us after queueing", next.getId(), ip,
+                        TimeUnit.NANOSECONDS.toMicros(lastQueueLatency));
+            } else {
+                inFlight.remove(next.getId());
+            }
+        }
+    }
+
+    /**
+     * Fails everything queued or outstanding while the circuit is open, so callers do not wait for the timeout.
+     */
+    private void failPending() {
+        for (InFlight request : inFlight.values()) {
+            complete(request.command, errorResponse(CIRCUIT_OPEN_ERROR));
+        }
+        inFlight.clear();
+        MiIoSendCommand queued;
+        while ((queued = pollQueued(0, true)) != null) {
+            complete(queued, errorResponse(CIRCUIT_OPEN_ERROR));
+        }
+    }
+
+    /**
+     * Takes the next command off the queues. Once taken, a read no longer accepts identical reads joining it.
+     *
+     * @param force take a background batch even if its gathering window is still open
+     */
+    private @Nullable MiIoSendCommand pollQueued(long now, boolean force) {
+        MiIoSendCommand retry = retries.poll();
+        if (retry != null) {
+            return retry;
+        }
+        synchronized (queuedReads) {
+            MiIoSendCommand next = null;
+            if (interactiveBurst < MAX_INTERACTIVE_BURST || background.getDepth() == 0) {
+                next = interactive.poll();
+            }
+            if (next != null) {
+                interactiveBurst++;
+            } else if (force || isBatchReady(background.peek(), now)) {
+                next = background.poll();
+                interactiveBurst = 0;
+                if (next == null) {
+                    next = interactive.poll();
+                }
+            } else {
+                next = interactive.poll();
+            }
+            if (next != null) {
+                slots.release();
+                unindex(next);
+            }
+            return next;
+        }
+    }
+
+    /**
+     * A background batch is held back for {@link #BATCH_WINDOW} after it was opened, unless it is already full,
+     * so the reads of one polling cycle share a request.
+     */
+    private boolean isBatchReady(@Nullable MiIoSendCommand head, long now) {
+        if (!(head instanceof PropertyBatch)) {
+            return true;
+        }
+        PropertyBatch batch = (PropertyBatch) head;
+        long readyAt = batch.getQueuedAt() + BATCH_WINDOW;
+        if (batch.getPropertyCount() >= maxBatchProperties || now - readyAt >= 0) {
+            return true;
+        }
+        batchDeadline = readyAt;
+        return false;
+    }
+
+    /**
+     * Closes a command leaving the queue to identical reads and further batch members. Called with the
+     * {@link #queuedReads} lock held.
+     */
+    private void unindex(MiIoSendCommand command) {
+        if (command instanceof PropertyBatch) {
+            PropertyBatch batch = (PropertyBatch) command;
+            openBatches.values().remove(batch);
+            queuedReads.values().removeAll(batch.getMembers());
+        } else if (command.getCommand().isRead()) {
+            queuedReads.values().remove(command);
+        }
+    }
+
+    private int nextId() {
         int cmdId = id.incrementAndGet();
-        if(cmdId > MAX_ID){
+        if (cmdId > MAX_ID) {
             id.set(0);
         }
-        fullCommand.addProperty("id", cmdId);
-        fullCommand.addProperty("method", command);
-        fullCommand.add("params", parser.parse(params));
-        MiIoSendCommand sendCmd = new MiIoSendCommand(cmdId, MiIoCommand.getCommand(command), fullCommand.toString());
-        commandConcurrentLinkedQueue.add(sendCmd);
-        if (needPing){
-            sendPing(ip);
-        }
         return cmdId;
     }
 
-    MiIoSendCommand sendMiIosendCommand(MiIoSendCommand miIoSendCommand) {
-        String error = "unknown error";
-        String response = "";
+    /**
+     * Sends a hello once the probe delay of the open circuit has passed. A probe that is not answered within the
+     * retransmission timeout re-opens the circuit with a longer delay.
+     */
+    private void probe(long now) {
+        if (probeDeadline != 0) {
+            if (now - probeDeadline < 0) {
+                return;
+            }
+            probeDeadline = 0;
+            breaker.onFailure(now);
+            refreshAddress();
+            logger.debug("Probe of {} not answered, circuit {}", ip, breaker);
+        }
+        if (breaker.tryProbe(now)) {
+            logger.trace("Probing {}", ip);
+            probeDeadline = now + rtt.getRto();
+            sendHello();
+        }
+    }
+
+    /**
+     * @return the state of the circuit breaker guarding this device
+     */
+    public CircuitBreaker.State getCircuitState() {
+        return breaker.getState();
+    }
+
+    /**
+     * Puts a request on the wire and arms its retransmission timer.
+     *
+     * @return false if the request could not be sent and has been completed with an error
+     */
+    private boolean transmit(InFlight request, long now) {
+        MiIoSendCommand next = request.command;
+        BufferPool pool = transport.getBufferPool();
+        ByteBuffer plain = pool.acquire();
+        ByteBuffer sendMsg = pool.acquire();
         try {
-            response = sendCommand(miIoSendCommand.getCommandString(), token, ip, deviceID);
-            response = response.replace(",,", ",");
-            JsonElement res;
-            res = parser.parse(response);
-            if(res.isJsonObject()){
-                needPing = false;
-                return miIoSendCommand;
-            }else{
-                error = "message is not JSON";
+            sendMsg.position(32);
+            MiIoCommand command = next.getCommand();
+            boolean cacheable = command != MiIoCommand.UNKNOWN && MiIoCodec.NO_PARAMS.equals(next.getParams());
+            if (!cacheable || !payloads.get(command, next.getId(), sendMsg)) {
+                MiIoCodec.writeRequest(plain, next.getId(), command, next.getMethod(), next.getParams());
+                plain.flip();
+                crypto.encrypt(plain, sendMsg);
+                if (cacheable) {
+                    payloads.put(command, next.getId(), sendMsg, 32);
+                }
             }
-        }catch (Exception e){
-            error =    e.getMessage();
+            sendMsg.flip();
+            timeStamp = (int) TimeUnit.MILLISECONDS.toSeconds(Calendar.getInstance().getTime().getTime());
+            crypto.writeHeader(sendMsg, deviceID, timeStamp + timeDelta);
+            request.sentAt = System.nanoTime();
+            long expiry = request.expiry;
+            request.deadline = expiry - (now + rtt.getRto()) < 0 ? expiry : now + rtt.getRto();
+            transport.send(getAddress(), sendMsg);
+            return true;
+        } catch (Exception e) {
+            complete(next, errorResponse(e.getMessage()));
+            return false;
+        } finally {
+            pool.release(plain);
+            pool.release(sendMsg);
         }
-        JsonObject errorOBJ = new JsonObject();
-        errorOBJ.addProperty("error", error);
-        miIoSendCommand.setResponse(errorOBJ);
-        return miIoSendCommand;
     }
 
-    private String sendCommand(String command, byte[] token, String ip, byte[] deviceId) throws BadPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, IllegalBlockSizeException, NoSuchPaddingException, InvalidKeyException, IOException {
-        byte[] encr;
-        encr = MiIoCrypto.encrypt(command.getBytes(), token);
+    /**
+     * @return the round trip time estimator of this device, for diagnostics
+     */
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    boolean markScheduled() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    void clearScheduled() {
+        scheduled.set(false);
+    }
+
+    /**
+     * @return true while the transport has to call {@link #service(long)} at {@link #nextDeadline()}
+     */
+    boolean hasDeadline() {
+        return !inFlight.isEmpty() || !breaker.allowRequest() || batchDeadline != 0;
+    }
+
+    long nextDeadline() {
+        long next = batchDeadline != 0 ? batchDeadline : Long.MAX_VALUE;
+        if (!breaker.allowRequest()) {
+            next = probeDeadline != 0 ? probeDeadline : breaker.getNextProbeAt();
+        }
+        for (InFlight request : inFlight.values()) {
+            next = Math.min(next, request.deadline);
+        }
+        return next;
+    }
+
+    /**
+     * Called by the transport thread for every datagram routed to this device. Replies are matched to the
+     * outstanding request by their JSON id, anything else (late, duplicate or foreign) is dropped.
+     */
+    void onDatagram(ByteBuffer response) {
+        if (response.remaining() < 32) {
+            return;
+        }
+        Message miIoResponse = new Message(response);
+        if (miIoResponse.getLength() > 32 && !crypto.isChecksumValid(miIoResponse)) {
+            invalidChecksums++;
+            logger.debug("Dropping message with invalid checksum from {}", ip);
+            return;
+        }
         timeStamp = (int) TimeUnit.MILLISECONDS.toSeconds(Calendar.getInstance().getTime().getTime());
-        byte[] sendMsg = Message.creatMsgData(encr, token, deviceId, timeStamp + timeDelta);
-        Message miIoResponseMsg = sendData(sendMsg, ip);
-        if (miIoResponseMsg == null){
-            errorCounter++;
-            if (errorCounter > MAX_ERRORS){
-                status = ThingStatusDetail.CONFIGURATION_ERROR;
-                sendPing(ip);
+        timeDelta = miIoResponse.getTimestampAsInt() - timeStamp;
+        lastValidReply = System.nanoTime();
+        if (miIoResponse.getLength() <= 32) {
+            // a device answering hellos may still ignore every command, so a hello only counts as an answered probe
+            if (probeDeadline != 0) {
+                probeDeadline = 0;
+                if (breaker.onProbeSuccess()) {
+                    logger.debug("{} answered the probe, closing circuit", ip);
+                    pingSuccess();
+                }
             }
-            return "{\"error\":\"No Response\"}";
+            CompletableFuture<Message> hello = pendingHello;
+            if (hello != null) {
+                pendingHello = null;
+                hello.complete(miIoResponse.copy());
+            }
+            return;
         }
-        if (!miIoResponseMsg.isChecksumValid()){
-            return "{\"error\":\"Message has invalid checksum\"}";
+        JsonObject decoded = decode(miIoResponse);
+        JsonElement responseId = decoded.get("id");
+        if (responseId == null || !responseId.isJsonPrimitive()) {
+            logger.debug("Dropping response without id from {}: {}", ip, decoded);
+            return;
         }
-        if (errorCounter > 0){
-            errorCounter = 0;
-            status = ThingStatusDetail.NONE;
-            updateStatus(ThingStatus.ONLINE, status);
+        InFlight request = inFlight.remove(responseId.getAsInt());
+        if (request == null) {
+            logger.debug("Dropping late or unmatched response {} from {}", responseId, ip);
+            return;
         }
-        if (!connected){
+        probeDeadline = 0;
+        if (breaker.onSuccess()) {
+            logger.debug("{} is reachable again, closing circuit", ip);
             pingSuccess();
         }
-        String decrytedResponse = new String(MiIoCrypto.decrypt(miIoResponseMsg.getData(), token));
-        return decrytedResponse;
+        if (request.attempts == 1) {
+            // Karn: the reply of a retransmitted request can not be attributed to one transmission
+            rtt.sample(System.nanoTime() - request.sentAt);
+        }
+        complete(request.command, decoded);
     }
 
-    private void pingSuccess() {
+    private JsonObject decode(Message miIoResponseMsg) {
         if (!connected){
-            connected = true;
-
-            status = ThingStatusDetail.NONE;
-            updateStatus(ThingStatus.ONLINE, ThingStatusDetail.NONE);
-        }else {
-            if (ThingStatusDetail.CONFIGURATION_ERROR.equals(status)){
-                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR);
-            }else{
-                status = ThingStatusDetail.NONE;
-                updateStatus(ThingStatus.ONLINE, status);
-            }
+            pingSuccess();
+        }
+        BufferPool pool = transport.getBufferPool();
+        ByteBuffer plain = pool.acquire();
+        try {
+            crypto.decrypt(miIoResponseMsg.getDataBuffer(), plain);
+            plain.flip();
+            return MiIoCodec.readResponse(plain);
+        } catch (Exception e) {
+            return errorResponse(e.getMessage());
+        } finally {
+            pool.release(plain);
         }
     }
 
-    public Message sendPing(String ip) throws IOException {
-        for (int i = 0; i < 3; i++) {
-            Message resp = sendData(MyXiaoMiBindingConstants.DISCOVER_STRING, ip);
-            if (resp != null){
-                pingSuccess();
-                return resp;
+    private void onNoResponse(MiIoSendCommand miIoSendCommand) {
+        lastValidReply = 0;
+        if (breaker.onFailure(System.nanoTime())) {
+            logger.debug("No response from {}, opening circuit", ip);
+            refreshAddress();
+            status = ThingStatusDetail.COMMUNICATION_ERROR;
+            updateStatus(ThingStatus.OFFLINE, status);
+        } else if (breaker.allowRequest()) {
+            rehandshake();
+        }
+        complete(miIoSendCommand, errorResponse("No Response"));
+    }
+
+    private JsonObject errorResponse(@Nullable String error) {
+        JsonObject errorOBJ = new JsonObject();
+        errorOBJ.addProperty("error", error != null ? error : "unknown error");
+        return errorOBJ;
+    }
+
+    /**
+     * Hands the response to the listeners, once for the command itself and once for every read coalesced into it.
+     */
+    private void complete(MiIoSendCommand miIoSendCommand, JsonObject response) {
+        if (miIoSendCommand instanceof PropertyBatch) {
+            completeBatch((PropertyBatch) miIoSendCommand, response);
+            return;
+        }
+        miIoSendCommand.setResponse(response);
+        List<MiIoSendCommand> coalesced = miIoSendCommand.getCoalesced();
+        for (MiIoSendCommand duplicate : coalesced) {
+            duplicate.setResponse(response);
+        }
+        transport.execute(this, () -> {
+            for (MessageListener listener : listeners){
+                try{
+                    listener.messageReceived(miIoSendCommand);
+                    for (MiIoSendCommand duplicate : coalesced) {
+                        listener.messageReceived(duplicate);
+                    }
+                }catch (Exception e){
+                    logger.debug("Could not inform listener {}: {}: ", listener, e.getMessage(), e);
+                }
+            }
+            pending.complete(miIoSendCommand);
+            for (MiIoSendCommand duplicate : coalesced) {
+                pending.complete(duplicate);
+            }
+        });
+    }
+
+    /**
+     * Splits the positional result of a batch back into one response per command. A batch the device answers
+     * with an error or a result of the wrong size is split, see {@link #splitBatch(PropertyBatch)}.
+     */
+    private void completeBatch(PropertyBatch batch, JsonObject response) {
+        List<MiIoSendCommand> members = batch.getMembers();
+        List<JsonObject> responses = batch.split(response);
+        if (responses != null) {
+            if (members.size() > 1) {
+                batchedCount += members.size();
+            }
+            for (int i = 0; i < members.size(); i++) {
+                complete(members.get(i), responses.get(i));
             }
+            return;
+        }
+        JsonElement error = response.get("error");
+        if (members.size() > 1 && (error == null || error.isJsonObject())) {
+            // the device answered, but not this many properties at once
+            splitBatch(batch);
+            return;
+        }
+        for (MiIoSendCommand member : members) {
+            complete(member, response);
         }
-        connected = false;
-        status = ThingStatusDetail.COMMUNICATION_ERROR;
-        updateStatus(ThingStatus.OFFLINE, status);
-        return null;
     }
 
-    private void updateStatus(ThingStatus status, ThingStatusDetail statusDetail){
-        for(MessageListener listener:listeners){
-            try {
-                listener.statusUpdate(status, statusDetail);
-            }catch (Exception e){
-                logger.debug("Could not inform listener {}: {}", listener, e.getMessage(), e);
+    /**
+     * Lowers the per-request limit to half of a batch the device did not answer and sends its commands again in
+     * smaller batches. The failure does not count against the circuit breaker.
+     */
+    private void splitBatch(PropertyBatch batch) {
+        List<MiIoSendCommand> members = batch.getMembers();
+        batchSplitCount++;
+        maxBatchProperties = Math.max(1, Math.min(maxBatchProperties, batch.getPropertyCount() / 2));
+        logger.debug("{} did not answer {} properties at once, lowering the batch size to {}", ip,
+                batch.getPropertyCount(), maxBatchProperties);
+        // the smaller batches already respect the lowered size, so the device is not asked too much again
+        List<PropertyBatch> parts = new ArrayList<>();
+        PropertyBatch part = new PropertyBatch(nextId());
+        parts.add(part);
+        for (int i = 0; i < members.size(); i++) {
+            if (!part.add(members.get(i), batch.getCounts().get(i), maxBatchProperties)) {
+                part = new PropertyBatch(nextId());
+                parts.add(part);
+                part.add(members.get(i), batch.getCounts().get(i), maxBatchProperties);
             }
         }
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            retries.addFirst(parts.get(i));
+        }
+        transport.schedule(this);
     }
 
-    private Message sendData(byte[] sendMsg, String ip) throws IOException {
-        byte[] response = comms(sendMsg, ip);
-        if(response.length >= 32){
-            Message miIoResponse = new Message(response);
-            timeStamp = (int) TimeUnit.MILLISECONDS.toSeconds(Calendar.getInstance().getTime().getTime());
-            timeDelta = miIoResponse.getTimestampAsInt() - timeStamp;
-            return miIoResponse;
-        }else{
-            return null;
+    private void pingSuccess() {
+        connected = true;
+        status = ThingStatusDetail.NONE;
+        updateStatus(ThingStatus.ONLINE, status);
+    }
+
+    /**
+     * Sets how long the device ID and time delta learnt from the last valid reply are trusted before the next
+     * command triggers a background hello.
+     */
+    public void setHandshakeTtl(int seconds) {
+        handshakeTtl = TimeUnit.SECONDS.toNanos(seconds > 0 ? seconds : DEFAULT_HANDSHAKE_TTL);
+    }
+
+    public boolean isHandshakeValid() {
+        long last = lastValidReply;
+        return last != 0 && System.nanoTime() - last < handshakeTtl;
+    }
+
+    /**
+     * Refreshes the handshake in the background. Commands keep flowing with the last known time delta, so no
+     * command ever waits for the hello round trip.
+     */
+    private void rehandshake() {
+        CompletableFuture<Message> hello = pendingHello;
+        if (hello != null && !hello.isDone()
+                && System.nanoTime() - helloSentAt < TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            return;
         }
+        logger.trace("Refreshing handshake with {}", ip);
+        sendHello();
     }
 
-    private synchronized byte[] comms(byte[] msg, String ip) throws IOException {
-        InetAddress ipAddress = InetAddress.getByName(ip);
-        DatagramSocket socket = getSocket();
-        DatagramPacket receive = new DatagramPacket(new byte[MSG_BUFFER_SIZE], MSG_BUFFER_SIZE);
-        try{
-            byte[] sendData = new byte[MSG_BUFFER_SIZE];
-            sendData = msg;
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, ipAddress, MyXiaoMiBindingConstants.PORT);
-            socket.send(sendPacket);
-            sendPacket.setData(new byte[MSG_BUFFER_SIZE]);
-            socket.receive(receive);
-            byte[] responce = Arrays.copyOfRange(receive.getData(), receive.getOffset(), receive.getOffset()+receive.getLength());
-            return responce;
-        } catch (SocketTimeoutException e){
-            needPing = true;
-            return new byte[0];
+    /**
+     * Sends a hello packet without waiting, the returned future completes when the device answers.
+     */
+    private CompletableFuture<Message> sendHello() {
+        CompletableFuture<Message> hello = new CompletableFuture<>();
+        pendingHello = hello;
+        helloSentAt = System.nanoTime();
+        try {
+            transport.send(getAddress(), MyXiaoMiBindingConstants.DISCOVER_STRING);
+        } catch (IOException e) {
+            hello.completeExceptionally(e);
         }
+        return hello;
     }
 
-    public class MessageSenderThread extends Thread{
-        public MessageSenderThread(){
-            super("Mi IO MessageSenderThread");
-            setDaemon(true);
+    /**
+     * Sends a hello packet and waits for the answer. Must not be called from the transport thread.
+     */
+    public @Nullable Message sendPing(String ip) throws IOException {
+        if (address == null) {
+            resolveAddress();
         }
+        for (int i = 0; i < 3; i++) {
+            try {
+                long start = System.nanoTime();
+                Message resp = sendHello().get(rtt.getRto(), TimeUnit.NANOSECONDS);
+                if (i == 0) {
+                    rtt.sample(System.nanoTime() - start);
+                }
+                pingSuccess();
+                return resp;
+            } catch (TimeoutException e) {
+                rtt.backoff();
+                logger.trace("No hello response from {}", ip);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (CancellationException e) {
+                break;
+            }
+        }
+        connected = false;
+        status = ThingStatusDetail.COMMUNICATION_ERROR;
+        updateStatus(ThingStatus.OFFLINE, status);
+        return null;
+    }
 
-        public void run(){
-            logger.debug("Starting Mi IO MessageSenderThread");
-            while (!interrupted()){
+    private void updateStatus(ThingStatus status, ThingStatusDetail statusDetail){
+        transport.execute(this, () -> {
+            for(MessageListener listener:listeners){
                 try {
-                    if (commandConcurrentLinkedQueue.isEmpty()){
-                        Thread.sleep(100);
-                        continue;
-                    }
-                    MiIoSendCommand queueMessage = commandConcurrentLinkedQueue.remove();
-                    MiIoSendCommand miIoSendCommand = sendMiIosendCommand(queueMessage);
-                    for (MessageListener listener : listeners){
-                        try{
-                            listener.messageReceived(miIoSendCommand);
-                        }catch (Exception e){
-                            logger.debug("Could not inform listener {}: {}: ", listener, e.getMessage(), e);
-                        }
-                    }
+                    listener.statusUpdate(status, statusDetail);
                 }catch (Exception e){
-                    logger.warn("something error while send message");
+                    logger.debug("Could not inform listener {}: {}", listener, e.getMessage(), e);
                 }
             }
+        });
+    }
+
+    private static class Slots extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Slots(int permits) {
+            super(permits);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
         }
     }
 
+    private static class InFlight {
+        final MiIoSendCommand command;
+        final long expiry;
+        long sentAt;
+        long deadline;
+        int attempts = 1;
 
+        InFlight(MiIoSendCommand command, long expiry) {
+            this.command = command;
+            this.expiry = expiry;
+            this.deadline = expiry;
+        }
+    }
 }
@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link MiIoPollScheduler} owns the poll slots of all devices of the binding. Polls sit in a hashed timing wheel
+ * that advances every {@link #TICK_MILLIS} ms. Each new poll gets a phase inside its interval from a golden ratio
+ * sequence, so devices started together are spread evenly instead of polling in lockstep, and every run is jittered
+ * around its nominal time without drifting. Due polls are handed to their executor only while the binding wide
+ * budget of polls per second allows it, the rest wait in a backlog for the next ticks.
+ *
+ * @author zaoweiceng
+ */
+public class MiIoPollScheduler {
+    public static final long TICK_MILLIS = 100;
+    public static final int DEFAULT_BUDGET = 10;
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final double GOLDEN_RATIO_CONJUGATE = 0.6180339887498949;
+    private static final double JITTER = 0.1;
+
+    private final Logger logger = LoggerFactory.getLogger(MiIoPollScheduler.class);
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayDeque<Poll>[] wheel = new ArrayDeque[WHEEL_SIZE];
+    private final ArrayDeque<Poll> backlog = new ArrayDeque<>();
+    private @Nullable ScheduledExecutorService ticker;
+    private long tick;
+    private long sequence;
+    private int registered;
+    private int budget = DEFAULT_BUDGET;
+    private double tokens = DEFAULT_BUDGET;
+    private long pollCount;
+    private long deferredCount;
+
+    public MiIoPollScheduler() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @param budget polls the whole binding may start per second
+     */
+    public synchronized void setBudget(int budget) {
+        this.budget = budget > 0 ? budget : DEFAULT_BUDGET;
+        tokens = Math.min(tokens, this.budget);
+    }
+
+    public synchronized int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Registers a task that is run every interval. The first run happens after the initial delay plus the phase
+     * of the poll within its interval.
+     *
+     * @param name shown in the log
+     * @param task must not block the caller of the executor for long
+     * @param executor runs the task, the wheel itself never runs device work
+     * @return the handle to cancel the poll
+     */
+    public synchronized Poll register(String name, long initialDelay, long interval, TimeUnit unit, Runnable task,
+            Executor executor) {
+        long intervalTicks = Math.max(1, unit.toMillis(interval) / TICK_MILLIS);
+        double phase = (sequence++ * GOLDEN_RATIO_CONJUGATE) % 1.0;
+        Poll poll = new Poll(name, intervalTicks, task, executor);
+        poll.nominal = tick + unit.toMillis(initialDelay) / TICK_MILLIS + (long) (phase * intervalTicks);
+        schedule(poll, poll.nominal);
+        registered++;
+        start();
+        logger.debug("Registered poll of '{}' every {} ms, phase {}%", name, intervalTicks * TICK_MILLIS,
+                (int) (phase * 100));
+        return poll;
+    }
+
+    private void schedule(Poll poll, long at) {
+        long due = Math.max(at, tick + 1);
+        poll.rounds = (due - tick - 1) / WHEEL_SIZE;
+        poll.due = due;
+        wheel[(int) (due & WHEEL_MASK)].add(poll);
+    }
+
+    private synchronized void reschedule(Poll poll, long intervalTicks) {
+        if (poll.cancelled || poll.intervalTicks == intervalTicks) {
+            return;
+        }
+        // the next run is moved as if the last one had been planned with the new interval, without catching up
+        poll.nominal = Math.max(poll.nominal + intervalTicks - poll.intervalTicks, tick + 1);
+        poll.intervalTicks = intervalTicks;
+        wheel[(int) (poll.due & WHEEL_MASK)].remove(poll);
+        schedule(poll, poll.nominal);
+    }
+
+    private void start() {
+        if (ticker == null) {
+            ScheduledExecutorService t = Executors
+                    .newSingleThreadScheduledExecutor(MiIoThreads.factory("Mi IO Poll Scheduler", false));
+            t.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            ticker = t;
+        }
+    }
+
+    private void tick() {
+        List<Poll> ready = new ArrayList<>();
+        synchronized (this) {
+            tick++;
+            tokens = Math.min(budget, tokens + budget * TICK_MILLIS / 1000.0);
+            List<Poll> due = new ArrayList<>();
+            Iterator<Poll> it = wheel[(int) (tick & WHEEL_MASK)].iterator();
+            while (it.hasNext()) {
+                Poll poll = it.next();
+                if (poll.cancelled) {
+                    it.remove();
+                } else if (poll.rounds > 0) {
+                    poll.rounds--;
+                } else {
+                    it.remove();
+                    due.add(poll);
+                }
+            }
+            for (Poll poll : due) {
+                // a poll still waiting for the budget is not queued twice
+                if (!poll.waiting) {
+                    poll.waiting = true;
+                    backlog.add(poll);
+                }
+                poll.nominal = Math.max(poll.nominal + poll.intervalTicks, tick + 1);
+                double jitter = JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+                schedule(poll, poll.nominal + (long) (poll.intervalTicks * jitter));
+            }
+            while (!backlog.isEmpty() && tokens >= 1) {
+                Poll poll = backlog.poll();
+                poll.waiting = false;
+                if (!poll.cancelled) {
+                    tokens--;
+                    ready.add(poll);
+                }
+            }
+            pollCount += ready.size();
+            for (Poll poll : due) {
+                if (poll.waiting) {
+                    deferredCount++;
+                }
+            }
+        }
+        for (Poll poll : ready) {
+            try {
+                poll.executor.execute(poll.task);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Poll of '{}' rejected: {}", poll.name, e.getMessage());
+            } catch (RuntimeException e) {
+                logger.debug("Poll of '{}' failed", poll.name, e);
+            }
+        }
+    }
+
+    private synchronized void cancel(Poll poll) {
+        if (!poll.cancelled) {
+            poll.cancelled = true;
+            registered--;
+            backlog.remove(poll);
+        }
+    }
+
+    public synchronized int getRegisteredCount() {
+        return registered;
+    }
+
+    /**
+     * @return polls that are due but wait for the budget
+     */
+    public synchronized int getBacklog() {
+        return backlog.size();
+    }
+
+    public synchronized long getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * @return polls that could not start when they were due because the budget was used up
+     */
+    public synchronized long getDeferredCount() {
+        return deferredCount;
+    }
+
+    /**
+     * Stops the wheel, registered polls do not run any more.
+     */
+    public synchronized void close() {
+        ScheduledExecutorService t = ticker;
+        ticker = null;
+        if (t != null) {
+            t.shutdownNow();
+        }
+        for (ArrayDeque<Poll> bucket : wheel) {
+            for (Poll poll : bucket) {
+                poll.cancelled = true;
+            }
+            bucket.clear();
+        }
+        backlog.clear();
+        registered = 0;
+    }
+
+    /**
+     * A poll registered with the scheduler.
+     */
+    public final class Poll {
+        private final String name;
+        private long intervalTicks;
+        private final Runnable task;
+        private final Executor executor;
+        private long nominal;
+        private long rounds;
+        private long due;
+        private boolean cancelled;
+        private boolean waiting;
+
+        private Poll(String name, long intervalTicks, Runnable task, Executor executor) {
+            this.name = name;
+            this.intervalTicks = intervalTicks;
+            this.task = task;
+            this.executor = executor;
+        }
+
+        public long getIntervalMillis() {
+            synchronized (MiIoPollScheduler.this) {
+                return intervalTicks * TICK_MILLIS;
+            }
+        }
+
+        /**
+         * Changes the interval, the run already planned is moved to the new interval right away.
+         */
+        public void setInterval(long interval, TimeUnit unit) {
+            reschedule(this, Math.max(1, unit.toMillis(interval) / TICK_MILLIS));
+        }
+
+        public void cancel() {
+            MiIoPollScheduler.this.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            synchronized (MiIoPollScheduler.this) {
+                return cancelled;
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.myxiaomi.internal.Message;
+import org.openhab.binding.myxiaomi.internal.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link MiIoSessionRegistry} hands out one shared {@link Communication} per device host and device ID, so
+ * things pointing at the same device share one session and one id counter. Sessions are reference counted and
+ * only closed when the last handler releases them. The registry is owned by the handler factory and also keeps
+ * track of sessions and threads that outlive it.
+ *
+ * @author zaoweiceng
+ */
+public class MiIoSessionRegistry {
+    private final Logger logger = LoggerFactory.getLogger(MiIoSessionRegistry.class);
+
+    private final MiIoTransport transport;
+    private final MiIoPollScheduler pollScheduler = new MiIoPollScheduler();
+    private final Map<String, Entry> sessions = new HashMap<>();
+    private final Map<Communication, Entry> entries = new IdentityHashMap<>();
+    private long created;
+    private long closed;
+
+    public MiIoSessionRegistry(MiIoTransport transport) {
+        this.transport = transport;
+    }
+
+    public MiIoTransport getTransport() {
+        return transport;
+    }
+
+    public MiIoPollScheduler getPollScheduler() {
+        return pollScheduler;
+    }
+
+    /**
+     * Returns the session of the device, creating it on first use. Every call must be paired with a
+     * {@link #release(Communication)}.
+     *
+     * @param id first command id of a newly created session
+     */
+    public Communication acquire(String host, byte[] token, byte[] deviceId, int id, int timeout) {
+        String key = key(host, deviceId);
+        synchronized (this) {
+            Entry entry = sessions.get(key);
+            if (entry != null) {
+                entry.references++;
+                return entry.session;
+            }
+        }
+        // a new session resolves the host, which must not hold up other things acquiring their sessions
+        Communication session = new Communication(transport, host, token, deviceId, id, timeout);
+        Entry entry;
+        synchronized (this) {
+            entry = sessions.get(key);
+            if (entry == null) {
+                entry = new Entry(key, session);
+                sessions.put(key, entry);
+                entries.put(session, entry);
+                created++;
+                logger.debug("Opened session {}", key);
+            }
+            entry.references++;
+        }
+        if (entry.session != session) {
+            // another thing opened the same session meanwhile
+            session.close();
+        }
+        return entry.session;
+    }
+
+    /**
+     * Drops one reference to a session and closes it once nobody uses it any more.
+     */
+    public synchronized void release(Communication session) {
+        Entry entry = entries.get(session);
+        if (entry == null) {
+            logger.debug("Releasing unknown session {}", session);
+            return;
+        }
+        if (--entry.references > 0) {
+            return;
+        }
+        sessions.remove(entry.key);
+        entries.remove(session);
+        session.close();
+        closed++;
+        logger.debug("Closed session {}", entry.key);
+    }
+
+    /**
+     * Learns the device ID of a host. A host that already has a session is the same device, otherwise a hello is
+     * sent from a temporary session that is closed again right away.
+     *
+     * @return the device ID or null if the device did not answer
+     */
+    public @Nullable byte[] discoverDeviceId(String host, byte[] token, int timeout) throws IOException {
+        synchronized (this) {
+            for (Entry entry : sessions.values()) {
+                if (entry.key.startsWith(host + "/") && entry.session.getDeviceID().length == 4) {
+                    return entry.session.getDeviceID();
+                }
+            }
+        }
+        Communication probe = new Communication(transport, host, token, new byte[0], 0, timeout);
+        try {
+            Message response = probe.sendPing(host);
+            return response != null ? response.getDeviceId() : null;
+        } finally {
+            probe.close();
+        }
+    }
+
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    public synchronized long getClosedCount() {
+        return closed;
+    }
+
+    /**
+     * @return number of sessions on the transport that are not handed out by this registry and were never closed
+     */
+    public synchronized int getUntrackedSessionCount() {
+        return Math.max(0, transport.getSessionCount() - sessions.size());
+    }
+
+    /**
+     * Stops polling, closes every session still referenced and the transport, and reports anything that leaked.
+     */
+    public void close() {
+        pollScheduler.close();
+        List<Entry> leaked;
+        synchronized (this) {
+            leaked = new ArrayList<>(sessions.values());
+            int untracked = getUntrackedSessionCount();
+            if (!leaked.isEmpty() || untracked > 0) {
+                logger.warn("{} Mi IO sessions still referenced and {} untracked sessions open on shutdown",
+                        leaked.size(), untracked);
+            }
+            sessions.clear();
+            entries.clear();
+            closed += leaked.size();
+        }
+        for (Entry entry : leaked) {
+            logger.debug("Closing leaked session {} with {} references", entry.key, entry.references);
+            entry.session.close();
+        }
+        transport.close();
+        logger.debug("Mi IO sessions created {}, closed {}, live threads {}", created, closed,
+                MiIoThreads.getLiveThreadCount());
+    }
+
+    private static String key(String host, byte[] deviceId) {
+        return host + "/" + Utils.getHex(deviceId);
+    }
+
+    private static class Entry {
+        final String key;
+        final Communication session;
+        int references;
+
+        Entry(String key, Communication session) {
+            this.key = key;
+            this.session = session;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link MiIoThreads} creates the threads of the binding. Virtual threads are looked up reflectively, so the
+ * binding still runs on JDKs without them and simply falls back to platform daemon threads.
+ *
+ * @author zaoweiceng
+ */
+public final class MiIoThreads {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MiIoThreads.class);
+    private static final AtomicInteger LIVE_THREADS = new AtomicInteger();
+
+    private MiIoThreads() {
+    }
+
+    /**
+     * @return true if the running JDK can create virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return virtualFactory("probe") != null;
+    }
+
+    /**
+     * Creates a thread factory for the given thread name, using virtual threads if requested and supported.
+     */
+    public static ThreadFactory factory(String name, boolean virtual) {
+        ThreadFactory factory = virtual ? virtualFactory(name) : null;
+        if (factory != null) {
+            return counted(factory);
+        }
+        return counted(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return number of threads created by the binding that are still running, to spot leaked threads
+     */
+    public static int getLiveThreadCount() {
+        return LIVE_THREADS.get();
+    }
+
+    private static ThreadFactory counted(ThreadFactory factory) {
+        return r -> factory.newThread(() -> {
+            LIVE_THREADS.incrementAndGet();
+            try {
+                r.run();
+            } finally {
+                LIVE_THREADS.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task, or null if virtual threads are not
+     * supported.
+     */
+    public static @Nullable ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        ThreadFactory factory = virtualFactory(name);
+        if (factory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, counted(factory));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Virtual thread executor is not available: {}", e.toString());
+            return null;
+        }
+    }
+
+    private static @Nullable ThreadFactory virtualFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            LOGGER.debug("Virtual threads are not available: {}", e.toString());
+            return null;
+        }
+    }
+}
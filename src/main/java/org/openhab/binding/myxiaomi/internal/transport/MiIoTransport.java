@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@link MiIoTransport} is the UDP engine shared by all {@link Communication} sessions of the binding.
+ * A single non-blocking {@link DatagramChannel} and {@link Selector} serve every device, received datagrams
+ * are routed to their session by source address and device ID, so the number of threads does not grow with
+ * the number of devices.
+ * <p>
+ * Dispatch is event driven: queueing a command hands the session to the transport thread and wakes the selector,
+ * idle sessions are never visited and an idle transport blocks in {@link Selector#select()}.
+ * <p>
+ * In virtual thread mode every session delivers its callbacks on its own virtual thread and blocking handler work
+ * runs on virtual threads as well, so a device parked in a blocking call costs a few kilobytes instead of a
+ * platform thread.
+ *
+ * @author zaoweiceng
+ */
+public class MiIoTransport {
+    private static final int MSG_BUFFER_SIZE = 2048;
+    private static final int POOL_CAPACITY = 32;
+    private static final long MAX_ERROR_BACKOFF = 1000;
+    private final Logger logger = LoggerFactory.getLogger(MiIoTransport.class);
+
+    private final Set<Communication> sessions = new CopyOnWriteArraySet<>();
+    private final ConcurrentMap<InetSocketAddress, CopyOnWriteArrayList<Communication>> routes = new ConcurrentHashMap<>();
+    private final BufferPool bufferPool = new BufferPool(MSG_BUFFER_SIZE, POOL_CAPACITY, true);
+    private @Nullable ByteBuffer receiveBuffer;
+    private final Queue<Communication> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // only touched by the transport thread: sessions with requests on the wire
+    private final Set<Communication> waiting = new HashSet<>();
+
+    private @Nullable Selector selector;
+    private @Nullable DatagramChannel channel;
+    private @Nullable Thread ioThread;
+    private @Nullable ExecutorService dispatcher;
+    private @Nullable ExecutorService blockingExecutor;
+    private final ConcurrentMap<Communication, ExecutorService> sessionExecutors = new ConcurrentHashMap<>();
+    private volatile boolean virtualThreads;
+    private volatile boolean running;
+
+    /**
+     * Enables the virtual thread mode. Takes effect for sessions registered afterwards and is ignored if the JDK
+     * does not support virtual threads.
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        boolean supported = virtualThreads && MiIoThreads.isVirtualThreadSupported();
+        if (virtualThreads && !supported) {
+            logger.info("Virtual threads requested but not supported by this JVM, using platform threads");
+        }
+        this.virtualThreads = supported;
+        ExecutorService old = blockingExecutor;
+        blockingExecutor = supported ? MiIoThreads.newVirtualThreadPerTaskExecutor("Mi IO Worker") : null;
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Runs potentially blocking handler work, on a fresh virtual thread in virtual thread mode or inline otherwise.
+     */
+    public void runBlocking(Runnable task) {
+        ExecutorService ex = blockingExecutor;
+        if (ex != null && !ex.isShutdown()) {
+            ex.execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Adds a session to the transport, starting the I/O thread on first use.
+     */
+    public synchronized void register(Communication session) throws IOException {
+        start();
+        InetSocketAddress address = session.getResolvedAddress();
+        if (address != null) {
+            route(session, address);
+        }
+        if (sessions.add(session) && virtualThreads) {
+            sessionExecutors.put(session,
+                    Executors.newSingleThreadExecutor(MiIoThreads.factory("Mi IO Session", true)));
+        }
+    }
+
+    public synchronized void unregister(Communication session) {
+        sessions.remove(session);
+        ExecutorService ex = sessionExecutors.remove(session);
+        if (ex != null) {
+            ex.shutdown();
+        }
+        InetSocketAddress address = session.getResolvedAddress();
+        if (address != null) {
+            unroute(session, address);
+        }
+    }
+
+    /**
+     * Makes the session reachable for datagrams sent from the given address.
+     */
+    void route(Communication session, InetSocketAddress address) {
+        routes.computeIfAbsent(address, k -> new CopyOnWriteArrayList<>()).addIfAbsent(session);
+    }
+
+    void unroute(Communication session, InetSocketAddress address) {
+        routes.computeIfPresent(address, (k, list) -> {
+            list.remove(session);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the pool of packet buffers used for sending and receiving, including its hit and miss counters
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    void send(InetSocketAddress address, byte[] data) throws IOException {
+        send(address, ByteBuffer.wrap(data));
+    }
+
+    void send(InetSocketAddress address, ByteBuffer data) throws IOException {
+        DatagramChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            throw new IOException("Mi IO transport is not running");
+        }
+        if (ch.send(data, address) == 0) {
+            logger.debug("Send buffer full, datagram to {} dropped", address);
+        }
+    }
+
+    /**
+     * Runs listener callbacks of a session off the I/O thread so a slow handler never delays the selector.
+     * Callbacks of one session are always delivered in order.
+     */
+    void execute(Communication session, Runnable task) {
+        Executor own = sessionExecutors.get(session);
+        if (own != null) {
+            own.execute(task);
+            return;
+        }
+        ExecutorService ex = dispatcher;
+        if (ex != null && !ex.isShutdown()) {
+            ex.execute(task);
+        }
+    }
+
+    /**
+     * Hands a session with queued work to the transport thread. A session is queued at most once and the selector
+     * is woken at most once until the transport thread picks the work up.
+     */
+    void schedule(Communication session) {
+        if (session.markScheduled()) {
+            ready.add(session);
+            wakeup();
+        }
+    }
+
+    void wakeup() {
+        Selector sel = selector;
+        if (sel != null && wakeupPending.compareAndSet(false, true)) {
+            sel.wakeup();
+        }
+    }
+
+    private void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        DatagramChannel ch = DatagramChannel.open();
+        ch.configureBlocking(false);
+        ch.bind(null);
+        ch.register(selector, SelectionKey.OP_READ);
+        channel = ch;
+        receiveBuffer = bufferPool.acquire();
+        dispatcher = Executors.newSingleThreadExecutor(MiIoThreads.factory("Mi IO Dispatcher", false));
+        running = true;
+        Thread t = MiIoThreads.factory("Mi IO Transport", false).newThread(this::run);
+        ioThread = t;
+        t.start();
+    }
+
+    public synchronized void close() {
+        running = false;
+        wakeup();
+        Thread t = ioThread;
+        if (t != null) {
+            t.interrupt();
+            ioThread = null;
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Error closing Mi IO transport: {}", e.getMessage());
+        }
+        ExecutorService ex = dispatcher;
+        if (ex != null) {
+            ex.shutdownNow();
+            dispatcher = null;
+        }
+        for (ExecutorService own : sessionExecutors.values()) {
+            own.shutdownNow();
+        }
+        sessionExecutors.clear();
+        ExecutorService blocking = blockingExecutor;
+        if (blocking != null) {
+            blocking.shutdownNow();
+            blockingExecutor = null;
+        }
+        sessions.clear();
+        routes.clear();
+        ready.clear();
+        logger.debug("Mi IO transport closed, {}", bufferPool);
+    }
+
+    private void run() {
+        logger.debug("Starting Mi IO Transport");
+        Selector sel = selector;
+        long wait = 0;
+        int errors = 0;
+        while (running && sel != null && sel.isOpen()) {
+            try {
+                int selected = sel.select(wait);
+                wakeupPending.set(false);
+                if (selected > 0) {
+                    sel.selectedKeys().clear();
+                    receive();
+                }
+                long now = System.nanoTime();
+                Communication session;
+                while ((session = ready.poll()) != null) {
+                    session.clearScheduled();
+                    // a session unregistered while it was queued is not serviced any more
+                    if (sessions.contains(session)) {
+                        service(session, now);
+                    }
+                }
+                long nextDeadline = Long.MAX_VALUE;
+                Iterator<Communication> it = waiting.iterator();
+                while (it.hasNext()) {
+                    Communication pending = it.next();
+                    if (!sessions.contains(pending)) {
+                        it.remove();
+                        continue;
+                    }
+                    if (pending.nextDeadline() - now <= 0) {
+                        pending.service(now);
+                    }
+                    if (!pending.hasDeadline()) {
+                        it.remove();
+                    } else {
+                        nextDeadline = Math.min(nextDeadline, pending.nextDeadline());
+                    }
+                }
+                wait = nextDeadline == Long.MAX_VALUE ? 0
+                        : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadline - now));
+                errors = 0;
+            } catch (Exception e) {
+                if (running) {
+                    logger.warn("something error in Mi IO transport: {}", e.getMessage(), e);
+                }
+                // a failure that repeats on every pass must not spin the transport thread
+                wait = Math.min(MAX_ERROR_BACKOFF, 1L << Math.min(errors++, 10));
+            }
+        }
+        logger.debug("Mi IO Transport stopped");
+    }
+
+    private void service(Communication session, long now) {
+        session.service(now);
+        if (session.hasDeadline()) {
+            waiting.add(session);
+        }
+    }
+
+    private void receive() throws IOException {
+        DatagramChannel ch = channel;
+        ByteBuffer receiveBuffer = this.receiveBuffer;
+        if (ch == null || receiveBuffer == null) {
+            return;
+        }
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = ch.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            List<Communication> candidates = routes.get(source);
+            if (candidates == null || candidates.isEmpty()) {
+                logger.trace("Datagram from unknown source {} dropped", source);
+                continue;
+            }
+            Communication session = select(candidates, receiveBuffer);
+            if (session != null) {
+                session.onDatagram(receiveBuffer);
+                if (session.markScheduled()) {
+                    ready.add(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the session a datagram belongs to: the one with a matching device ID, or one that has not learnt its
+     * device ID yet.
+     */
+    private @Nullable Communication select(List<Communication> candidates,
+            ByteBuffer datagram) {
+        if (candidates.size() == 1 || datagram.remaining() < 12) {
+            return candidates.get(0);
+        }
+        Communication fallback = null;
+        for (Communication session : candidates) {
+            byte[] did = session.getDeviceID();
+            if (did.length != 4) {
+                fallback = session;
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < 4; i++) {
+                if (did[i] != datagram.get(datagram.position() + 8 + i)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return session;
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The {@link PayloadCache} keeps the encrypted payloads of parameterless commands of one device in a small direct
+ * mapped table indexed by the id slot. A payload only depends on the token, the command and the id, so it is reused
+ * when a request is retransmitted and whenever an id comes round again for the same command.
+ * Only used by the transport thread.
+ *
+ * @author zaoweiceng
+ */
+class PayloadCache {
+    private final MiIoCommand[] commands;
+    private final int[] ids;
+    private final byte[][] payloads;
+    private final int mask;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param slots number of slots, rounded up to a power of two
+     */
+    PayloadCache(int slots) {
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        commands = new MiIoCommand[size];
+        ids = new int[size];
+        payloads = new byte[size][];
+        mask = size - 1;
+    }
+
+    /**
+     * Copies the cached payload into the buffer at its current position.
+     *
+     * @return false if the payload is not cached
+     */
+    boolean get(MiIoCommand command, int id, ByteBuffer out) {
+        int slot = id & mask;
+        byte[] payload = payloads[slot];
+        if (payload == null || commands[slot] != command || ids[slot] != id || out.remaining() < payload.length) {
+            misses++;
+            return false;
+        }
+        hits++;
+        out.put(payload);
+        return true;
+    }
+
+    /**
+     * Caches the bytes between the given offset and the position of the buffer.
+     */
+    void put(MiIoCommand command, int id, ByteBuffer buffer, int offset) {
+        int slot = id & mask;
+        byte[] payload = payloads[slot];
+        int length = buffer.position() - offset;
+        if (payload == null || payload.length != length) {
+            payload = new byte[length];
+            payloads[slot] = payload;
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(payload);
+        commands[slot] = command;
+        ids[slot] = id;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+}
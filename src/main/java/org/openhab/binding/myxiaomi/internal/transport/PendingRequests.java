@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link PendingRequests} holds the futures of commands sent through the asynchronous API until their reply
+ * arrives. Entries are keyed by the command instance, not its id, so wrapped ids can never collide. A command that
+ * gets no reply is completed with an error response by the transport like any other. Only an entry whose command
+ * was lost without ever being completed outlives its expiry, it is failed with a {@link TimeoutException} and
+ * evicted the next time a request is registered, so the table stays bounded.
+ *
+ * @author zaoweiceng
+ */
+class PendingRequests {
+    private final Map<MiIoSendCommand, Entry> pending = new ConcurrentHashMap<>();
+    private final AtomicLong expired = new AtomicLong();
+
+    CompletableFuture<MiIoSendCommand> register(MiIoSendCommand command, long expiresAt) {
+        evictExpired(System.nanoTime());
+        CompletableFuture<MiIoSendCommand> future = new CompletableFuture<>();
+        pending.put(command, new Entry(future, expiresAt));
+        // a caller cancelling the future gives up the entry as well
+        future.whenComplete((result, error) -> pending.remove(command));
+        return future;
+    }
+
+    void complete(MiIoSendCommand command) {
+        Entry entry = pending.remove(command);
+        if (entry != null) {
+            entry.future.complete(command);
+        }
+    }
+
+    void evictExpired(long now) {
+        Iterator<Map.Entry<MiIoSendCommand, Entry>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<MiIoSendCommand, Entry> next = it.next();
+            if (now - next.getValue().expiresAt >= 0) {
+                it.remove();
+                expired.incrementAndGet();
+                next.getValue().future.completeExceptionally(
+                        new TimeoutException("No reply to command " + next.getKey().getId()));
+            }
+        }
+    }
+
+    /**
+     * Cancels every entry, except those whose command already got its response and only waits for the listeners to
+     * be informed. They are completed right away.
+     */
+    void cancelAll() {
+        Iterator<Map.Entry<MiIoSendCommand, Entry>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<MiIoSendCommand, Entry> next = it.next();
+            it.remove();
+            if (next.getKey().getResponse() != null) {
+                next.getValue().future.complete(next.getKey());
+            } else {
+                next.getValue().future.cancel(false);
+            }
+        }
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    long getExpiredCount() {
+        return expired.get();
+    }
+
+    private static class Entry {
+        final CompletableFuture<MiIoSendCommand> future;
+        final long expiresAt;
+
+        Entry(CompletableFuture<MiIoSendCommand> future, long expiresAt) {
+            this.future = future;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
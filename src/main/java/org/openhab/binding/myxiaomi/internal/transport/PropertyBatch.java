@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link PropertyBatch} is a single get_prop request on the wire that carries the properties of several
+ * queued get_prop commands. The positional result array is split back into one response per command.
+ *
+ * @author zaoweiceng
+ */
+class PropertyBatch extends MiIoSendCommand {
+    private final List<MiIoSendCommand> members = new ArrayList<>();
+    private final List<Integer> counts = new ArrayList<>();
+    private int propertyCount;
+
+    PropertyBatch(int id) {
+        super(id, MiIoCommand.GET_PROPERTY, MiIoCommand.GET_PROPERTY.getCommand(), "[]");
+    }
+
+    /**
+     * Adds a command reading the given number of properties unless it would take the batch over the given maximum.
+     * The first command is always taken.
+     */
+    boolean add(MiIoSendCommand member, int count, int maxProperties) {
+        if (!members.isEmpty() && propertyCount + count > maxProperties) {
+            return false;
+        }
+        members.add(member);
+        counts.add(count);
+        propertyCount += count;
+        return true;
+    }
+
+    List<MiIoSendCommand> getMembers() {
+        return members;
+    }
+
+    List<Integer> getCounts() {
+        return counts;
+    }
+
+    int getPropertyCount() {
+        return propertyCount;
+    }
+
+    /**
+     * @return the properties of all members as one flat array
+     */
+    @Override
+    public String getParams() {
+        StringBuilder params = new StringBuilder("[");
+        for (MiIoSendCommand member : members) {
+            String memberParams = member.getParams();
+            if (params.length() > 1) {
+                params.append(',');
+            }
+            params.append(memberParams, 1, memberParams.length() - 1);
+        }
+        return params.append(']').toString();
+    }
+
+    /**
+     * @return one response per member in member order, or null if the response does not hold one result per
+     *         requested property
+     */
+    @Nullable
+    List<JsonObject> split(JsonObject response) {
+        JsonElement result = response.get("result");
+        if (result == null || !result.isJsonArray() || result.getAsJsonArray().size() != propertyCount) {
+            return null;
+        }
+        JsonArray values = result.getAsJsonArray();
+        List<JsonObject> responses = new ArrayList<>(members.size());
+        int index = 0;
+        for (int i = 0; i < members.size(); i++) {
+            JsonArray memberResult = new JsonArray();
+            for (int j = 0; j < counts.get(i); j++) {
+                memberResult.add(values.get(index++));
+            }
+            JsonObject memberResponse = new JsonObject();
+            memberResponse.addProperty("id", members.get(i).getId());
+            memberResponse.add("result", memberResult);
+            responses.add(memberResponse);
+        }
+        return responses;
+    }
+}
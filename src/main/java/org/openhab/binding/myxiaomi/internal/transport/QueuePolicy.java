@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+/**
+ * The {@link QueuePolicy} decides what happens to a command queued for a device whose queue is full.
+ *
+ * @author zaoweiceng
+ */
+public enum QueuePolicy {
+    /**
+     * The new command is answered with an error right away.
+     */
+    REJECT,
+    /**
+     * The oldest queued read is answered with an error to make room, if there is none the new command is rejected.
+     */
+    DROP_OLDEST_READ,
+    /**
+     * The caller waits up to the queue timeout for room, then the new command is rejected.
+     */
+    BLOCK_WITH_TIMEOUT
+}
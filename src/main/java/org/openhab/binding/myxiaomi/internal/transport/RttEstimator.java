@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link RttEstimator} keeps the smoothed round trip time and its variance of one device and derives the
+ * retransmission timeout from them, following Jacobson's algorithm as specified in RFC 6298. Callers apply Karn's
+ * rule by only feeding samples of requests that were not retransmitted.
+ *
+ * @author zaoweiceng
+ */
+public class RttEstimator {
+    private static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final long maxRto;
+    private volatile long srtt;
+    private volatile long rttVar;
+    private volatile long rto;
+    private volatile long samples;
+
+    /**
+     * @param maxRto upper bound of the retransmission timeout in nanoseconds
+     */
+    public RttEstimator(long maxRto) {
+        this.maxRto = maxRto;
+        this.rto = clamp(INITIAL_RTO);
+    }
+
+    /**
+     * Adds a round trip measurement in nanoseconds.
+     */
+    public synchronized void sample(long rtt) {
+        if (samples == 0) {
+            srtt = rtt;
+            rttVar = rtt / 2;
+        } else {
+            rttVar = (3 * rttVar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        samples++;
+        rto = clamp(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttVar));
+    }
+
+    /**
+     * Doubles the retransmission timeout after a request timed out.
+     */
+    public synchronized void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    private long clamp(long value) {
+        return Math.max(Math.min(MIN_RTO, maxRto), Math.min(value, maxRto));
+    }
+
+    /**
+     * @return the current retransmission timeout in nanoseconds
+     */
+    public long getRto() {
+        return rto;
+    }
+
+    /**
+     * @return the smoothed round trip time in nanoseconds, 0 before the first sample
+     */
+    public long getSmoothedRtt() {
+        return srtt;
+    }
+
+    /**
+     * @return the round trip time variance in nanoseconds, 0 before the first sample
+     */
+    public long getRttVariance() {
+        return rttVar;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        return "srtt=" + TimeUnit.NANOSECONDS.toMillis(srtt) + "ms, rttvar=" + TimeUnit.NANOSECONDS.toMillis(rttVar)
+                + "ms, rto=" + TimeUnit.NANOSECONDS.toMillis(rto) + "ms, samples=" + samples;
+    }
+}
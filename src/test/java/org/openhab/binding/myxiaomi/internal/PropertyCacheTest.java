@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal;
+
+import static org.junit.Assert.*;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+import org.openhab.binding.myxiaomi.internal.PropertyCache.Property;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that get_prop properties with different params are cached apart and refreshed only by replies to their
+ * own params.
+ *
+ * @author zaoweiceng
+ */
+public class PropertyCacheTest {
+    private static final long TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final Property<String> POWER = new Property<>("power", MiIoCommand.GET_PROPERTY, "[\"power\"]",
+            String.class, PropertyCacheTest::first, TTL, true);
+    private static final Property<String> MODE = new Property<>("mode", MiIoCommand.GET_PROPERTY, "[ \"mode\" ]",
+            String.class, PropertyCacheTest::first, TTL, true);
+
+    private final List<String> fetched = new ArrayList<>();
+    private final PropertyCache cache = new PropertyCache(property -> {
+        fetched.add(property.getParams());
+        String value = property.getParams().equals("[\"power\"]") ? "on" : "auto";
+        return CompletableFuture.completedFuture(reply(property.getParams(), "[\"" + value + "\"]"));
+    });
+
+    private static String first(JsonElement result) {
+        return result.getAsJsonArray().get(0).getAsString();
+    }
+
+    private static MiIoSendCommand reply(String params, String result) {
+        MiIoSendCommand command = new MiIoSendCommand(1, MiIoCommand.GET_PROPERTY,
+                MiIoCommand.GET_PROPERTY.getCommand(), MiIoCodec.normalize(params));
+        command.setResponse(new JsonParser().parse("{\"id\":1,\"result\":" + result + "}").getAsJsonObject());
+        return command;
+    }
+
+    @Test
+    public void propertiesWithDifferentParamsAreCachedApart() throws Exception {
+        assertEquals("on", cache.get(POWER).get());
+        assertEquals("auto", cache.get(MODE).get());
+        assertEquals("on", cache.get(POWER).get());
+        assertEquals("auto", cache.get(MODE).get());
+
+        assertEquals(2, cache.getFetchCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals("[\"mode\"]", fetched.get(1));
+    }
+
+    @Test
+    public void equalPropertiesShareOneEntry() throws Exception {
+        Property<String> power = new Property<>("power again", MiIoCommand.GET_PROPERTY, "[\"power\"]", String.class,
+                PropertyCacheTest::first, TTL, true);
+        assertEquals("on", cache.get(POWER).get());
+        assertEquals("on", cache.get(power).get());
+        assertEquals(1, cache.getFetchCount());
+    }
+
+    @Test
+    public void replyUpdatesOnlyThePropertyOfItsParams() throws Exception {
+        cache.register(POWER);
+        cache.register(MODE);
+        cache.update(reply("[\"power\"]", "[\"off\"]"));
+
+        assertEquals("off", cache.getIfPresent(POWER));
+        assertNull(cache.getIfPresent(MODE));
+    }
+}
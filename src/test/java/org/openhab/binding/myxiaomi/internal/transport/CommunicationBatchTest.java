@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that get_prop reads batched into one request are sent again in smaller batches when the device does not
+ * answer the batch, and that every read still gets its own value.
+ *
+ * @author zaoweiceng
+ */
+public class CommunicationBatchTest {
+    private static final int TIMEOUT = 200;
+    private static final int READS = 5;
+
+    private FakeMiIoDevice device;
+    private MiIoTransport transport;
+    private Communication communication;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeMiIoDevice();
+        transport = new MiIoTransport();
+        communication = new Communication(transport, FakeMiIoDevice.HOST, device.getPort(), FakeMiIoDevice.TOKEN,
+                FakeMiIoDevice.DEVICE_ID, 0, TIMEOUT);
+        communication.setMaxBatchProperties(10);
+        assertNotNull("fake device did not answer the hello", communication.sendPing(FakeMiIoDevice.HOST));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        communication.close();
+        transport.close();
+        device.close();
+    }
+
+    @Test
+    public void silentlyDroppedBatchIsSplit() throws Exception {
+        device.setMaxProperties(2);
+        List<CompletableFuture<MiIoSendCommand>> futures = new ArrayList<>();
+        for (int i = 0; i < READS; i++) {
+            futures.add(communication.sendCommandAsync(MiIoCommand.GET_PROPERTY.getCommand(), "[\"p" + i + "\"]"));
+        }
+        for (int i = 0; i < READS; i++) {
+            MiIoSendCommand response = futures.get(i).get(TIMEOUT * 10, TimeUnit.MILLISECONDS);
+            assertFalse("read " + i + " failed: " + response.getResponse(), response.isError());
+            assertEquals("p" + i, response.getResult().getAsJsonArray().get(0).getAsString());
+        }
+        assertEquals(1, communication.getBatchSplitCount());
+        assertEquals(2, communication.getMaxBatchProperties());
+        assertEquals(CircuitBreaker.State.CLOSED, communication.getCircuitState());
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import static org.junit.Assert.*;
+
+import org.eclipse.smarthome.core.thing.ThingStatus;
+import org.eclipse.smarthome.core.thing.ThingStatusDetail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.binding.myxiaomi.annotation.MessageListener;
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a queued command goes on the wire right away instead of waiting for a sender loop to come by.
+ * The sleep-polling sender this replaced took about 100 ms per command.
+ *
+ * @author zaoweiceng
+ */
+public class CommunicationLatencyTest {
+    private static final int COMMANDS = 50;
+    private static final long MEDIAN_BOUND = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_BOUND = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private FakeMiIoDevice device;
+    private MiIoTransport transport;
+    private Communication communication;
+    private final BlockingQueue<MiIoSendCommand> responses = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeMiIoDevice();
+        transport = new MiIoTransport();
+        communication = new Communication(transport, FakeMiIoDevice.HOST, device.getPort(), FakeMiIoDevice.TOKEN,
+                FakeMiIoDevice.DEVICE_ID, 0, 1000);
+        communication.registerLisener(new MessageListener() {
+            @Override
+            public void messageReceived(MiIoSendCommand cmd) {
+                responses.add(cmd);
+            }
+
+            @Override
+            public void statusUpdate(ThingStatus status, ThingStatusDetail thingStatusDetail) {
+            }
+        });
+        assertNotNull("fake device did not answer the hello", communication.sendPing(FakeMiIoDevice.HOST));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        communication.close();
+        transport.close();
+        device.close();
+    }
+
+    @Test
+    public void queuedCommandIsSentWithoutDelay() throws Exception {
+        // the first command pays for class loading and JIT warm up, it is not timed
+        communication.queueCommand(MiIoCommand.SET_POWER, "[\"on\"]");
+        assertNotNull("warm up command never reached the device", device.awaitRequest(1, TimeUnit.SECONDS));
+        assertNotNull("no reply to the warm up command", responses.poll(1, TimeUnit.SECONDS));
+
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < COMMANDS; i++) {
+            long queuedAt = System.nanoTime();
+            int id = communication.queueCommand(MiIoCommand.SET_POWER, "[\"on\"]");
+            FakeMiIoDevice.Request request = device.awaitRequest(1, TimeUnit.SECONDS);
+            assertNotNull("command " + id + " never reached the device", request);
+            assertEquals(id, request.id);
+            latencies.add(request.arrivedAt - queuedAt);
+            // wait for the reply, so the next command finds a free in-flight window
+            MiIoSendCommand response = responses.poll(1, TimeUnit.SECONDS);
+            assertNotNull("no reply to command " + id, response);
+            assertFalse(response.isError());
+            assertTrue(communication.getLastQueueLatency() < MAX_BOUND);
+        }
+        Collections.sort(latencies);
+        long median = latencies.get(latencies.size() / 2);
+        long max = latencies.get(latencies.size() - 1);
+        assertTrue("median queue to wire latency " + TimeUnit.NANOSECONDS.toMicros(median) + " us",
+                median < MEDIAN_BOUND);
+        assertTrue("max queue to wire latency " + TimeUnit.NANOSECONDS.toMicros(max) + " us", max < MAX_BOUND);
+    }
+}
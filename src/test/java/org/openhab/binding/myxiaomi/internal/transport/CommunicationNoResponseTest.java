@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import static org.junit.Assert.*;
+
+import org.eclipse.smarthome.core.thing.ThingStatus;
+import org.eclipse.smarthome.core.thing.ThingStatusDetail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.binding.myxiaomi.annotation.MessageListener;
+import org.openhab.binding.myxiaomi.entity.MiIoCommand;
+import org.openhab.binding.myxiaomi.entity.json.MiIoSendCommand;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the future of a command a device never answers completes with the "No Response" error once the
+ * command timed out, and that nothing stays behind in the table of pending requests. The device keeps answering
+ * hellos, like a device whose miIO service hung.
+ *
+ * @author zaoweiceng
+ */
+public class CommunicationNoResponseTest {
+    private static final int TIMEOUT = 200;
+    // failures that open the circuit of a session
+    private static final int MAX_ERRORS = 3;
+
+    private FakeMiIoDevice device;
+    private MiIoTransport transport;
+    private Communication communication;
+
+    @Before
+    public void setUp() throws Exception {
+        device = new FakeMiIoDevice();
+        transport = new MiIoTransport();
+        communication = new Communication(transport, FakeMiIoDevice.HOST, device.getPort(), FakeMiIoDevice.TOKEN,
+                FakeMiIoDevice.DEVICE_ID, 0, TIMEOUT);
+        assertNotNull("fake device did not answer the hello", communication.sendPing(FakeMiIoDevice.HOST));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        communication.close();
+        transport.close();
+        device.close();
+    }
+
+    @Test
+    public void unansweredCommandCompletesWithError() throws Exception {
+        device.setSilent(true);
+        CompletableFuture<MiIoSendCommand> future = communication
+                .sendCommandAsync(MiIoCommand.SET_POWER.getCommand(), "[\"on\"]");
+        assertNotNull("command never reached the device", device.awaitRequest(1, TimeUnit.SECONDS));
+        assertEquals(1, communication.getPendingCount());
+
+        MiIoSendCommand response = future.get(TIMEOUT * 10, TimeUnit.MILLISECONDS);
+        assertTrue(response.isError());
+        assertEquals("No Response", response.getResponse().get("error").getAsString());
+        assertNull("set was sent twice", device.awaitRequest(0, TimeUnit.SECONDS));
+        assertEquals(0, communication.getPendingCount());
+        assertEquals(0, communication.getExpiredCount());
+    }
+
+    @Test
+    public void unansweredReadIsRetransmittedBeforeItFails() throws Exception {
+        device.setSilent(true);
+        CompletableFuture<MiIoSendCommand> future = communication
+                .sendCommandAsync(MiIoCommand.GET_PROPERTY.getCommand(), "[\"power\"]");
+        FakeMiIoDevice.Request first = device.awaitRequest(1, TimeUnit.SECONDS);
+        assertNotNull("command never reached the device", first);
+
+        MiIoSendCommand response = future.get(TIMEOUT * 10, TimeUnit.MILLISECONDS);
+        assertTrue(response.isError());
+        FakeMiIoDevice.Request retransmitted = device.awaitRequest(0, TimeUnit.SECONDS);
+        assertNotNull("read was not retransmitted", retransmitted);
+        assertEquals(first.id, retransmitted.id);
+        assertEquals(0, communication.getPendingCount());
+    }
+
+    @Test
+    public void answeredHellosDoNotKeepTheCircuitClosed() throws Exception {
+        device.setSilent(true);
+        for (int i = 0; i < MAX_ERRORS; i++) {
+            MiIoSendCommand response = communication
+                    .sendCommandAsync(MiIoCommand.SET_POWER.getCommand(), "[\"on\"]")
+                    .get(TIMEOUT * 10, TimeUnit.MILLISECONDS);
+            assertEquals("No Response", response.getResponse().get("error").getAsString());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, communication.getCircuitState());
+
+        long start = System.nanoTime();
+        MiIoSendCommand response = communication.sendCommandAsync(MiIoCommand.SET_POWER.getCommand(), "[\"on\"]")
+                .get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(Communication.CIRCUIT_OPEN_ERROR, response.getResponse().get("error").getAsString());
+        assertTrue("command to an open circuit did not fail fast",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT / 2));
+    }
+
+    @Test
+    public void queuedCommandCompletesWhenTheLastListenerLeaves() throws Exception {
+        device.setSilent(true);
+        communication.sendCommandAsync(MiIoCommand.SET_POWER.getCommand(), "[\"on\"]");
+        assertNotNull("command never reached the device", device.awaitRequest(1, TimeUnit.SECONDS));
+        // the in-flight window is taken, so this one waits in the queue
+        CompletableFuture<MiIoSendCommand> queued = communication
+                .sendCommandAsync(MiIoCommand.SET_POWER.getCommand(), "[\"off\"]");
+
+        MessageListener listener = new MessageListener() {
+            @Override
+            public void messageReceived(MiIoSendCommand cmd) {
+            }
+
+            @Override
+            public void statusUpdate(ThingStatus status, ThingStatusDetail thingStatusDetail) {
+            }
+        };
+        communication.registerLisener(listener);
+        communication.unregisterListener(listener);
+
+        MiIoSendCommand response = queued.get(TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        assertEquals(Communication.SESSION_CLOSED_ERROR, response.getResponse().get("error").getAsString());
+        assertEquals(0, communication.getQueueLenth());
+    }
+
+    @Test
+    public void queuedCommandCompletesWhenTheSessionCloses() throws Exception {
+        device.setSilent(true);
+        CompletableFuture<MiIoSendCommand> sent = communication
+                .sendCommandAsync(MiIoCommand.SET_POWER.getCommand(), "[\"on\"]");
+        assertNotNull("command never reached the device", device.awaitRequest(1, TimeUnit.SECONDS));
+        CompletableFuture<MiIoSendCommand> queued = communication
+                .sendCommandAsync(MiIoCommand.SET_POWER.getCommand(), "[\"off\"]");
+
+        communication.close();
+
+        MiIoSendCommand response = queued.get(TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        assertEquals(Communication.SESSION_CLOSED_ERROR, response.getResponse().get("error").getAsString());
+        assertTrue(sent.isCancelled());
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package org.openhab.binding.myxiaomi.internal.transport;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openhab.binding.myxiaomi.internal.Message;
+import org.openhab.binding.myxiaomi.internal.MiIoCrypto;
+import org.openhab.binding.myxiaomi.internal.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link FakeMiIoDevice} is a miIO device on a loopback {@link DatagramChannel}. It answers hellos and
+ * answers every command with {@code ["ok"]}, a get_prop with the names of the properties it asked for, unless it is
+ * told to stay silent, and records when each request arrived.
+ *
+ * @author zaoweiceng
+ */
+class FakeMiIoDevice implements Closeable {
+    static final String HOST = "127.0.0.1";
+    static final byte[] TOKEN = Utils.hexStringToByteArray("00112233445566778899aabbccddeeff");
+    static final byte[] DEVICE_ID = Utils.hexStringToByteArray("0102a3b4");
+
+    private final DatagramChannel channel;
+    private final Thread thread;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private volatile boolean silent;
+    private volatile int maxProperties = Integer.MAX_VALUE;
+
+    FakeMiIoDevice() throws IOException {
+        channel = DatagramChannel.open();
+        // a free port, so test classes running in parallel do not collide
+        channel.bind(new InetSocketAddress(HOST, 0));
+        thread = new Thread(this::run, "Fake Mi IO Device");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Makes the device receive commands without answering them. Hellos are still answered.
+     */
+    void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
+    /**
+     * Makes the device ignore a get_prop for more properties than given, like devices that silently drop requests
+     * they can not handle.
+     */
+    void setMaxProperties(int maxProperties) {
+        this.maxProperties = maxProperties;
+    }
+
+    /**
+     * @return the next command the device received, or null if none arrived in time
+     */
+    Request awaitRequest(long timeout, TimeUnit unit) throws InterruptedException {
+        return requests.poll(timeout, unit);
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress sender = channel.receive(buffer);
+                long arrivedAt = System.nanoTime();
+                buffer.flip();
+                byte[] raw = Arrays.copyOf(buffer.array(), buffer.limit());
+                int timeStamp = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+                if (raw.length == 32) {
+                    ByteBuffer hello = ByteBuffer.allocate(32);
+                    hello.put(new byte[] { 0x21, 0x31, 0x00, 0x20 }).putInt(0).put(DEVICE_ID).putInt(timeStamp)
+                            .put(TOKEN);
+                    hello.flip();
+                    channel.send(hello, sender);
+                    continue;
+                }
+                String json = new String(MiIoCrypto.decrypt(Arrays.copyOfRange(raw, 32, raw.length), TOKEN),
+                        StandardCharsets.UTF_8);
+                JsonObject request = new JsonParser().parse(json).getAsJsonObject();
+                int id = request.get("id").getAsInt();
+                String method = request.get("method").getAsString();
+                requests.add(new Request(id, method, arrivedAt));
+                String result = "[\"ok\"]";
+                if ("get_prop".equals(method)) {
+                    JsonArray params = request.getAsJsonArray("params");
+                    if (params.size() > maxProperties) {
+                        continue;
+                    }
+                    result = params.toString();
+                }
+                if (silent) {
+                    continue;
+                }
+                byte[] reply = MiIoCrypto.encrypt(
+                        ("{\"id\":" + id + ",\"result\":" + result + "}").getBytes(StandardCharsets.UTF_8), TOKEN);
+                channel.send(ByteBuffer.wrap(Message.creatMsgData(reply, TOKEN, DEVICE_ID, timeStamp)), sender);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (Exception e) {
+                // a malformed request is simply not answered
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Request {
+        final int id;
+        final String method;
+        final long arrivedAt;
+
+        Request(int id, String method, long arrivedAt) {
+            this.id = id;
+            this.method = method;
+            this.arrivedAt = arrivedAt;
+        }
+    }
+}